@@ -0,0 +1,376 @@
+package uk.org.cowgill.james.squares;
+
+/**
+ * Plays 64 random games at once from the same starting position
+ *
+ * The games are bit-sliced: each line is stored as a long with one bit per
+ * game, so setting lines, finding completed squares and changing turns are
+ * done for every game with a few bitwise operations. Scores are stored as
+ * bit-sliced binary counters (one long for each bit of the score).
+ *
+ * Each game plays its free lines in a random order (a uniform random
+ * permutation, which is the same as choosing a uniform random free line at
+ * each move). On each step, every game sets its next line, so all the
+ * games finish after the same number of steps. Playing the order returned
+ * by getMoveOrder through GameState.move() gives the same scores.
+ *
+ * This class is not thread safe.
+ *
+ * @author James
+ */
+public class BatchPlayout
+{
+	/**
+	 * Number of games played at once (one per bit of a long)
+	 */
+	public static final int BATCH_SIZE = 64;
+
+	//Gammas used to spread the seeds of the games and to step each game's random stream
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+	private static final long STREAM_GAMMA = 0xBB67AE8584CAA73BL;
+
+	private final int size;
+	private final int lineCount;
+
+	//Squares next to each line (or -1)
+	private final int[] firstSquare;
+	private final int[] secondSquare;
+
+	//Lines around each square
+	private final int[][] squareLines;
+
+	/**
+	 * Bitset of the games which have set each line
+	 */
+	private final long[] lines;
+
+	/**
+	 * Games which have chosen each line in the current step
+	 */
+	private final long[] chosen;
+
+	/**
+	 * Lines chosen by any game in the current step
+	 */
+	private final int[] touched;
+
+	/**
+	 * Order each game plays its lines in
+	 */
+	private final int[][] order;
+	private int steps;
+
+	/**
+	 * Bit-sliced score of each player (scores[player - 1][bit])
+	 */
+	private final long[][] scores;
+
+	/**
+	 * Games where it is player 1's turn
+	 */
+	private long player1Turn;
+
+	/**
+	 * Creates a new batch for the given board size
+	 *
+	 * @param size board size
+	 */
+	public BatchPlayout(int size)
+	{
+		GameState layout = new GameState(size, true);
+		int squares = size * size;
+
+		this.size = size;
+		this.lineCount = layout.getLineCount();
+
+		//Find the squares next to each line
+		firstSquare = new int[lineCount];
+		secondSquare = new int[lineCount];
+		squareLines = new int[squares][4];
+
+		for(int line = 0; line < lineCount; line++)
+		{
+			firstSquare[line] = -1;
+			secondSquare[line] = -1;
+		}
+
+		for(int square = 0; square < squares; square++)
+		{
+			int x = square % size;
+			int y = square / size;
+
+			squareLines[square][0] = layout.getLineIndex(x, y, false);
+			squareLines[square][1] = layout.getLineIndex(x, y + 1, false);
+			squareLines[square][2] = layout.getLineIndex(x, y, true);
+			squareLines[square][3] = layout.getLineIndex(x + 1, y, true);
+
+			for(int line : squareLines[square])
+			{
+				if(firstSquare[line] < 0)
+				{
+					firstSquare[line] = square;
+				}
+				else
+				{
+					secondSquare[line] = square;
+				}
+			}
+		}
+
+		lines = new long[lineCount];
+		chosen = new long[lineCount];
+		touched = new int[BATCH_SIZE];
+		order = new int[BATCH_SIZE][lineCount];
+		scores = new long[2][32 - Integer.numberOfLeadingZeros(squares)];
+	}
+
+	/**
+	 * Plays 64 random games from the given position
+	 *
+	 * @param start starting position (not modified)
+	 * @param seed random number seed (each game uses a different stream)
+	 */
+	public void play(GameState start, long seed)
+	{
+		checkSize(start);
+
+		//Create a random order of the free lines for each game
+		int free = 0;
+		for(int line = 0; line < lineCount; line++)
+		{
+			if(!start.isLineSet(line))
+			{
+				order[0][free++] = line;
+			}
+		}
+
+		for(int game = 0; game < BATCH_SIZE; game++)
+		{
+			int[] gameOrder = order[game];
+
+			//Each game starts at an unrelated point so the streams do not overlap
+			long random = mix(seed + game * GOLDEN_GAMMA);
+
+			System.arraycopy(order[0], 0, gameOrder, 0, free);
+
+			for(int i = free - 1; i > 0; i--)
+			{
+				random += STREAM_GAMMA;
+				int j = (int) ((mix(random) >>> 33) % (i + 1));
+
+				int temp = gameOrder[i];
+				gameOrder[i] = gameOrder[j];
+				gameOrder[j] = temp;
+			}
+		}
+
+		run(start, free);
+	}
+
+	/**
+	 * Plays 64 games from the given position with the given move orders
+	 *
+	 * @param start starting position (not modified)
+	 * @param orders lines (indexes) each game plays, which must be a permutation of the free lines
+	 */
+	public void play(GameState start, int[][] orders)
+	{
+		checkSize(start);
+
+		int free = start.getFreeLineCount();
+		for(int game = 0; game < BATCH_SIZE; game++)
+		{
+			System.arraycopy(orders[game], 0, order[game], 0, free);
+		}
+
+		run(start, free);
+	}
+
+	/**
+	 * Returns the lines played by a game of the last batch in order
+	 *
+	 * @param game game number (0 to BATCH_SIZE - 1)
+	 * @param dest destination array (must hold the number of free lines in the starting position)
+	 * @return the number of lines
+	 */
+	public int getMoveOrder(int game, int[] dest)
+	{
+		System.arraycopy(order[game], 0, dest, 0, steps);
+		return steps;
+	}
+
+	/**
+	 * Returns the final score of a player in a game of the last batch
+	 *
+	 * @param game game number (0 to BATCH_SIZE - 1)
+	 * @param player player (1 or 2)
+	 */
+	public int getScore(int game, int player)
+	{
+		long[] score = scores[player - 1];
+		int value = 0;
+
+		for(int bit = 0; bit < score.length; bit++)
+		{
+			value |= (int) ((score[bit] >>> game) & 1) << bit;
+		}
+
+		return value;
+	}
+
+	/**
+	 * Returns the games of the last batch which a player won with more squares
+	 *
+	 * @param player player (1 or 2)
+	 * @return a bitset of the games
+	 */
+	public long getWins(int player)
+	{
+		long[] mine = scores[player - 1];
+		long[] theirs = scores[2 - player];
+		long greater = 0;
+		long equal = -1L;
+
+		//Compare from the most significant bit
+		for(int bit = mine.length - 1; bit >= 0; bit--)
+		{
+			greater |= equal & mine[bit] & ~theirs[bit];
+			equal &= ~(mine[bit] ^ theirs[bit]);
+		}
+
+		return greater;
+	}
+
+	/**
+	 * Returns the games of the last batch where both players got the same number of squares
+	 *
+	 * @return a bitset of the games
+	 */
+	public long getTies()
+	{
+		return ~(getWins(1) | getWins(2));
+	}
+
+	/**
+	 * Plays the move orders from the starting position
+	 */
+	private void run(GameState start, int free)
+	{
+		//Copy starting position into every game
+		for(int line = 0; line < lineCount; line++)
+		{
+			lines[line] = start.isLineSet(line) ? -1L : 0;
+		}
+
+		for(int player = 0; player < 2; player++)
+		{
+			int score = start.getScore(player + 1);
+
+			for(int bit = 0; bit < scores[player].length; bit++)
+			{
+				scores[player][bit] = ((score >>> bit) & 1) != 0 ? -1L : 0;
+			}
+		}
+
+		player1Turn = start.isPlayer1Turn() ? -1L : 0;
+		steps = free;
+
+		for(int step = 0; step < free; step++)
+		{
+			//Group the games by the line they set
+			int touchedCount = 0;
+
+			for(int game = 0; game < BATCH_SIZE; game++)
+			{
+				int line = order[game][step];
+
+				if(chosen[line] == 0)
+				{
+					touched[touchedCount++] = line;
+				}
+
+				chosen[line] |= 1L << game;
+			}
+
+			//Set lines and find completed squares
+			long completedOne = 0;
+			long completedTwo = 0;
+
+			for(int i = 0; i < touchedCount; i++)
+			{
+				int line = touched[i];
+				long games = chosen[line];
+
+				chosen[line] = 0;
+				lines[line] |= games;
+
+				long first = games & completed(firstSquare[line]);
+				long second = games & completed(secondSquare[line]);
+
+				completedOne |= first | second;
+				completedTwo |= first & second;
+			}
+
+			//Add to scores
+			addScore(scores[0], completedOne & player1Turn);
+			addScore(scores[0], completedTwo & player1Turn);
+			addScore(scores[1], completedOne & ~player1Turn);
+			addScore(scores[1], completedTwo & ~player1Turn);
+
+			//Players who did not complete a square lose their turn
+			player1Turn ^= ~completedOne;
+		}
+	}
+
+	/**
+	 * Returns the games in which a square has all 4 sides set
+	 *
+	 * @param square index of the square (or -1)
+	 */
+	private long completed(int square)
+	{
+		if(square < 0)
+		{
+			return 0;
+		}
+
+		int[] sides = squareLines[square];
+		return lines[sides[0]] & lines[sides[1]] & lines[sides[2]] & lines[sides[3]];
+	}
+
+	/**
+	 * Adds 1 to a bit-sliced counter in the given games
+	 */
+	private static void addScore(long[] score, long games)
+	{
+		long carry = games;
+
+		for(int bit = 0; bit < score.length && carry != 0; bit++)
+		{
+			long next = score[bit] & carry;
+			score[bit] ^= carry;
+			carry = next;
+		}
+	}
+
+	/**
+	 * Throws an exception if a state is the wrong size for this batch
+	 */
+	private void checkSize(GameState state)
+	{
+		if(state.getSize() != size)
+		{
+			throw new IllegalArgumentException("state has the wrong board size");
+		}
+	}
+
+	/**
+	 * SplitMix64 finalizer
+	 */
+	private static long mix(long z)
+	{
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,108 @@
+package uk.org.cowgill.james.squares;
+
+/**
+ * The 8 symmetries (rotations and reflections) of a square board
+ *
+ * Each symmetry is a number from 0 to 7 made up of 3 bits which are applied in this order:
+ * - Bit 1: flip horizontally (x becomes size - x)
+ * - Bit 2: flip vertically (y becomes size - y)
+ * - Bit 0: transpose (swap x and y)
+ *
+ * Lines are given using the line indexes used by GameState.
+ *
+ * @author James
+ */
+public final class BoardSymmetry
+{
+	/**
+	 * The number of symmetries
+	 */
+	public static final int COUNT = 8;
+
+	/**
+	 * The identity symmetry (leaves the board unchanged)
+	 */
+	public static final int IDENTITY = 0;
+
+	//Symmetry bits
+	private static final int TRANSPOSE = 1;
+	private static final int FLIP_X = 2;
+	private static final int FLIP_Y = 4;
+
+	private BoardSymmetry()
+	{
+	}
+
+	/**
+	 * Returns the symmetry which reverses the given symmetry
+	 *
+	 * @param symmetry symmetry to invert
+	 */
+	public static int inverse(int symmetry)
+	{
+		//Transposing swaps the axes which have been flipped
+		if((symmetry & TRANSPOSE) != 0)
+		{
+			return TRANSPOSE | ((symmetry & FLIP_X) << 1) | ((symmetry & FLIP_Y) >>> 1);
+		}
+
+		return symmetry;
+	}
+
+	/**
+	 * Transforms a line using a symmetry
+	 *
+	 * @param size size of the board
+	 * @param symmetry symmetry to apply
+	 * @param line index of the line
+	 * @return index of the transformed line
+	 */
+	public static int transformLine(int size, int symmetry, int line)
+	{
+		int topLineCount = size * (size + 1);
+		boolean isLeft = line >= topLineCount;
+		int x, y;
+
+		//Decode line
+		if(isLeft)
+		{
+			y = (line - topLineCount) / (size + 1);
+			x = (line - topLineCount) - y * (size + 1);
+		}
+		else
+		{
+			y = line / size;
+			x = line - y * size;
+		}
+
+		//Flip (a flipped line starts at its other end)
+		if((symmetry & FLIP_X) != 0)
+		{
+			x = isLeft ? size - x : size - 1 - x;
+		}
+
+		if((symmetry & FLIP_Y) != 0)
+		{
+			y = isLeft ? size - 1 - y : size - y;
+		}
+
+		//Transpose
+		if((symmetry & TRANSPOSE) != 0)
+		{
+			int tmp = x;
+			x = y;
+			y = tmp;
+			isLeft = !isLeft;
+		}
+
+		//Encode line
+		if(isLeft)
+		{
+			return topLineCount + y * (size + 1) + x;
+		}
+		else
+		{
+			return y * size + x;
+		}
+	}
+}
@@ -0,0 +1,482 @@
+package uk.org.cowgill.james.squares;
+
+/**
+ * Keeps track of the chains and loops in a game of squares
+ *
+ * A chain is a group of connected squares which each have exactly 2 sides
+ * set, connected through the lines which are not set. A loop is a chain
+ * which joins back onto itself.
+ *
+ * The analyzer is updated incrementally by GameState as lines are set or
+ * undone. Only the chain containing the changed squares is touched, and
+ * when a chain is split or joined, only the smaller part is relabelled.
+ *
+ * Create analyzers using GameState.getChainAnalyzer().
+ *
+ * @author James
+ */
+public class ChainAnalyzer
+{
+	/**
+	 * The length of chain which is considered "long" (for the long chain rule)
+	 */
+	public static final int LONG_CHAIN_LENGTH = 3;
+
+	private final GameState state;
+	private final int size;
+
+	/**
+	 * Component id of each square or -1 if it is not in a chain
+	 */
+	private final int[] component;
+
+	/**
+	 * Length of each component (0 if the id is not used)
+	 */
+	private final int[] length;
+
+	/**
+	 * True if the component is a loop
+	 */
+	private final boolean[] loop;
+
+	/**
+	 * The component ids which are in use (followed by the free ids)
+	 */
+	private final int[] ids;
+
+	/**
+	 * Position of each id in the ids array
+	 */
+	private final int[] idPosition;
+
+	/**
+	 * Number of component ids in use
+	 */
+	private int componentCount;
+
+	//Component counters
+	private int loopCount;
+	private int longChainCount;
+	private int chainSquares;
+
+	/**
+	 * Creates a new analyzer and finds the chains in the current position
+	 *
+	 * @param state state to analyze
+	 */
+	ChainAnalyzer(GameState state)
+	{
+		int squares = state.getSize() * state.getSize();
+
+		this.state = state;
+		this.size = state.getSize();
+		component = new int[squares];
+		length = new int[squares];
+		loop = new boolean[squares];
+		ids = new int[squares];
+		idPosition = new int[squares];
+
+		reset();
+
+		//Add existing squares
+		for(int i = 0; i < squares; i++)
+		{
+			if(state.getSquareSideCount(i) == 2)
+			{
+				addSquare(i);
+			}
+		}
+	}
+
+	/**
+	 * Removes all the chains
+	 *
+	 * Called by GameState when the board is cleared.
+	 */
+	void reset()
+	{
+		for(int i = 0; i < component.length; i++)
+		{
+			component[i] = -1;
+			length[i] = 0;
+			loop[i] = false;
+			ids[i] = i;
+			idPosition[i] = i;
+		}
+
+		componentCount = 0;
+		loopCount = 0;
+		longChainCount = 0;
+		chainSquares = 0;
+	}
+
+	/**
+	 * Returns the number of chains (including loops)
+	 */
+	public int getComponentCount()
+	{
+		return componentCount;
+	}
+
+	/**
+	 * Returns the number of loops
+	 */
+	public int getLoopCount()
+	{
+		return loopCount;
+	}
+
+	/**
+	 * Returns the number of chains (not loops) which are at least LONG_CHAIN_LENGTH long
+	 */
+	public int getLongChainCount()
+	{
+		return longChainCount;
+	}
+
+	/**
+	 * Returns the total number of squares in all the chains and loops
+	 */
+	public int getChainSquareCount()
+	{
+		return chainSquares;
+	}
+
+	/**
+	 * Writes the ids of all the chains and loops into a buffer
+	 *
+	 * @param buffer buffer to write to (must hold at least getComponentCount() ids)
+	 * @return the number of ids written
+	 */
+	public int getComponents(int[] buffer)
+	{
+		System.arraycopy(ids, 0, buffer, 0, componentCount);
+		return componentCount;
+	}
+
+	/**
+	 * Returns the id of the chain or loop containing a square
+	 *
+	 * Ids are only valid until the next move.
+	 *
+	 * @param x x coordinate (starts at 0)
+	 * @param y y coordinate (starts at 0)
+	 * @return the id or -1 if the square is not in a chain
+	 */
+	public int getComponent(int x, int y)
+	{
+		return component[y * size + x];
+	}
+
+	/**
+	 * Returns the number of squares in a chain or loop
+	 *
+	 * @param id component id
+	 */
+	public int getLength(int id)
+	{
+		return length[id];
+	}
+
+	/**
+	 * Returns true if a component is a loop
+	 *
+	 * @param id component id
+	 */
+	public boolean isLoop(int id)
+	{
+		return loop[id];
+	}
+
+	/**
+	 * Adds a square which now has 2 sides
+	 *
+	 * Called by GameState after the lines around the square have been updated.
+	 *
+	 * @param square index of the square
+	 */
+	void addSquare(int square)
+	{
+		int first = -1;
+		int second = -1;
+
+		//Find neighbours in chains
+		for(int dir = 0; dir < 4; dir++)
+		{
+			int other = neighbour(square, dir);
+			if(other >= 0 && component[other] >= 0)
+			{
+				if(first < 0)
+				{
+					first = other;
+				}
+				else
+				{
+					second = other;
+				}
+			}
+		}
+
+		if(first < 0)
+		{
+			//New chain
+			int id = allocateId();
+			component[square] = id;
+			changeLength(id, 1);
+		}
+		else if(second < 0)
+		{
+			//Extend chain
+			component[square] = component[first];
+			changeLength(component[first], 1);
+		}
+		else if(component[first] == component[second])
+		{
+			//Ends of the chain meet to form a loop
+			int id = component[first];
+			component[square] = id;
+			changeLength(id, 1);
+			setLoop(id, true);
+		}
+		else
+		{
+			//Join two chains, relabelling the smaller one
+			int big = component[first];
+			int small = component[second];
+			int start = second;
+
+			if(length[big] < length[small])
+			{
+				big = component[second];
+				small = component[first];
+				start = first;
+			}
+
+			int smallLength = length[small];
+			relabel(start, square, big);
+			changeLength(small, -smallLength);
+			releaseId(small);
+
+			component[square] = big;
+			changeLength(big, smallLength + 1);
+		}
+	}
+
+	/**
+	 * Removes a square which has 2 sides and is about to gain or lose one
+	 *
+	 * Called by GameState before any lines around the square are changed.
+	 *
+	 * @param square index of the square
+	 */
+	void removeSquare(int square)
+	{
+		int id = component[square];
+		int first = -1;
+		int second = -1;
+
+		component[square] = -1;
+
+		//Find neighbours in the chain
+		for(int dir = 0; dir < 4; dir++)
+		{
+			int other = neighbour(square, dir);
+			if(other >= 0 && component[other] >= 0)
+			{
+				if(first < 0)
+				{
+					first = other;
+				}
+				else
+				{
+					second = other;
+				}
+			}
+		}
+
+		if(loop[id])
+		{
+			//Opening a loop leaves a single chain
+			setLoop(id, false);
+			changeLength(id, -1);
+		}
+		else if(first < 0)
+		{
+			//Chain removed
+			changeLength(id, -1);
+			releaseId(id);
+		}
+		else if(second < 0)
+		{
+			//End of chain removed
+			changeLength(id, -1);
+		}
+		else
+		{
+			//Chain split in two - walk both halves together to find the smaller one
+			int a = first, aPrev = square;
+			int b = second, bPrev = square;
+			int steps = 1;
+
+			for(;;)
+			{
+				int aNext = next(a, aPrev);
+				if(aNext < 0)
+				{
+					break;
+				}
+
+				int bNext = next(b, bPrev);
+				if(bNext < 0)
+				{
+					//Second half is smaller
+					first = second;
+					break;
+				}
+
+				aPrev = a;
+				a = aNext;
+				bPrev = b;
+				b = bNext;
+				steps++;
+			}
+
+			//Move the smaller half into a new chain
+			int newId = allocateId();
+			relabel(first, square, newId);
+			changeLength(id, -steps - 1);
+			changeLength(newId, steps);
+		}
+	}
+
+	/**
+	 * Returns the neighbouring square connected through a free line
+	 *
+	 * @param square index of the square
+	 * @param dir direction (0 = top, 1 = bottom, 2 = left, 3 = right)
+	 * @return the neighbouring square, or -1 if the line is set or on the edge of the board
+	 */
+	private int neighbour(int square, int dir)
+	{
+		int y = square / size;
+		int x = square - y * size;
+		int left = state.getTopLineCount() + square + y;
+
+		switch(dir)
+		{
+			case 0:
+				return (y != 0 && !state.isLineSet(square)) ? square - size : -1;
+
+			case 1:
+				return (y != size - 1 && !state.isLineSet(square + size)) ? square + size : -1;
+
+			case 2:
+				return (x != 0 && !state.isLineSet(left)) ? square - 1 : -1;
+
+			default:
+				return (x != size - 1 && !state.isLineSet(left + 1)) ? square + 1 : -1;
+		}
+	}
+
+	/**
+	 * Returns the next square along a chain
+	 *
+	 * @param square current square
+	 * @param prev previous square (which is skipped)
+	 * @return the next square or -1 if this is the end of the chain
+	 */
+	private int next(int square, int prev)
+	{
+		for(int dir = 0; dir < 4; dir++)
+		{
+			int other = neighbour(square, dir);
+			if(other >= 0 && other != prev && component[other] >= 0)
+			{
+				return other;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Sets the component of every square along a chain
+	 *
+	 * @param start first square to relabel
+	 * @param prev square before start (which is not relabelled)
+	 * @param id new component id
+	 */
+	private void relabel(int start, int prev, int id)
+	{
+		while(start >= 0)
+		{
+			component[start] = id;
+
+			int next = next(start, prev);
+			prev = start;
+			start = next;
+		}
+	}
+
+	/**
+	 * Changes the length of a component and updates the counters
+	 */
+	private void changeLength(int id, int delta)
+	{
+		if(!loop[id] && length[id] >= LONG_CHAIN_LENGTH)
+		{
+			longChainCount--;
+		}
+
+		length[id] += delta;
+		chainSquares += delta;
+
+		if(!loop[id] && length[id] >= LONG_CHAIN_LENGTH)
+		{
+			longChainCount++;
+		}
+	}
+
+	/**
+	 * Sets whether a component is a loop and updates the counters
+	 */
+	private void setLoop(int id, boolean value)
+	{
+		if(!loop[id] && length[id] >= LONG_CHAIN_LENGTH)
+		{
+			longChainCount--;
+		}
+
+		loop[id] = value;
+		loopCount += value ? 1 : -1;
+
+		if(!loop[id] && length[id] >= LONG_CHAIN_LENGTH)
+		{
+			longChainCount++;
+		}
+	}
+
+	/**
+	 * Allocates a new (empty) component id
+	 */
+	private int allocateId()
+	{
+		return ids[componentCount++];
+	}
+
+	/**
+	 * Releases an empty component id
+	 */
+	private void releaseId(int id)
+	{
+		//Swap with the last used id
+		int pos = idPosition[id];
+		int last = ids[--componentCount];
+
+		ids[pos] = last;
+		idPosition[last] = pos;
+		ids[componentCount] = id;
+		idPosition[id] = componentCount;
+	}
+}
@@ -0,0 +1,617 @@
+package uk.org.cowgill.james.squares;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Finds the Nimstring values of the independent regions of a board
+ *
+ * Nimstring is squares played so that the player who completes the last
+ * square loses (a player who completes a square must move again). Winning
+ * Nimstring is the same as getting control of the long chains, which
+ * usually decides the real game.
+ *
+ * The board is split into components: groups of squares joined by free
+ * lines. Each component has a nim value, and the value of the board is the
+ * nim sum (XOR) of the values of the components. A value of 0 means the
+ * player to move loses. A position where the last move offered squares in
+ * a way which lets the player to move decline the last two (a loony move)
+ * has the value LOONY, which is a win for the player to move.
+ *
+ * Component values are kept in a least recently used cache, keyed by the
+ * shape of the component (its free lines, moved to the corner and
+ * transformed into the smallest of its 8 symmetric forms). Values are
+ * reused between positions and games which contain the same shapes.
+ *
+ * This class is not thread safe.
+ *
+ * @author James
+ */
+public class ComponentEvaluator
+{
+	/**
+	 * The value of a loony position (a win for the player to move)
+	 */
+	public static final int LOONY = -1;
+
+	/**
+	 * Returned when a component has too many free lines to evaluate
+	 */
+	public static final int UNKNOWN = -2;
+
+	/**
+	 * The default maximum number of component values in the cache
+	 */
+	public static final int DEFAULT_CACHE_SIZE = 1 << 16;
+
+	/**
+	 * The default maximum number of free lines in a component which is evaluated
+	 */
+	public static final int DEFAULT_MAX_LINES = 24;
+
+	//Free side bits of each square
+	private static final int TOP = 1;
+	private static final int BOTTOM = 2;
+	private static final int LEFT = 4;
+	private static final int RIGHT = 8;
+
+	private final Map<String, Integer> cache;
+	private int maxLines = DEFAULT_MAX_LINES;
+
+	//Statistics
+	private long hits;
+	private long misses;
+
+	//Results of the last evaluation
+	private int[] componentValues = new int[0];
+	private int componentCount;
+
+	/**
+	 * Creates a new evaluator with the default cache size
+	 */
+	public ComponentEvaluator()
+	{
+		this(DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * Creates a new evaluator
+	 *
+	 * @param cacheSize maximum number of component values in the cache
+	 */
+	public ComponentEvaluator(final int cacheSize)
+	{
+		cache = new LinkedHashMap<String, Integer>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest)
+			{
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Sets the maximum number of free lines in a component which is evaluated
+	 *
+	 * @param maxLines maximum number of free lines
+	 */
+	public void setMaxLines(int maxLines)
+	{
+		this.maxLines = maxLines;
+	}
+
+	/**
+	 * Returns the Nimstring value of a position
+	 *
+	 * @param state position to evaluate (not modified)
+	 * @return the nim value (0 if the player to move loses), LOONY or UNKNOWN
+	 */
+	public int evaluate(GameState state)
+	{
+		int size = state.getSize();
+		byte[] cells = new byte[size * size];
+
+		//Find the free sides of each square
+		for(int y = 0; y < size; y++)
+		{
+			for(int x = 0; x < size; x++)
+			{
+				int sides = 0;
+
+				if(!state.isLineSet(state.getLineIndex(x, y, false)))
+				{
+					sides |= TOP;
+				}
+
+				if(!state.isLineSet(state.getLineIndex(x, y + 1, false)))
+				{
+					sides |= BOTTOM;
+				}
+
+				if(!state.isLineSet(state.getLineIndex(x, y, true)))
+				{
+					sides |= LEFT;
+				}
+
+				if(!state.isLineSet(state.getLineIndex(x + 1, y, true)))
+				{
+					sides |= RIGHT;
+				}
+
+				cells[y * size + x] = (byte) sides;
+			}
+		}
+
+		if(componentValues.length < size * size)
+		{
+			componentValues = new int[size * size];
+		}
+
+		componentCount = 0;
+		return positionValue(cells, size, size, true);
+	}
+
+	/**
+	 * Returns the number of components found by the last call to evaluate
+	 *
+	 * This is 0 if the position was loony.
+	 */
+	public int getComponentCount()
+	{
+		return componentCount;
+	}
+
+	/**
+	 * Returns the value of a component found by the last call to evaluate
+	 *
+	 * @param index component index (0 to getComponentCount() - 1)
+	 * @return the nim value or UNKNOWN
+	 */
+	public int getComponentValue(int index)
+	{
+		return componentValues[index];
+	}
+
+	/**
+	 * Returns the number of component values found in the cache
+	 */
+	public long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * Returns the number of component values which had to be calculated
+	 */
+	public long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * Returns the number of component values in the cache
+	 */
+	public int getCacheSize()
+	{
+		return cache.size();
+	}
+
+	/**
+	 * Removes all the values from the cache and resets the hit and miss counters
+	 */
+	public void clear()
+	{
+		cache.clear();
+		hits = 0;
+		misses = 0;
+	}
+
+	/**
+	 * Returns the value of a position (with the player to move about to take any squares)
+	 *
+	 * @param cells free sides of each square (modified)
+	 * @param width width of the grid
+	 * @param height height of the grid
+	 * @param record true to record the component values (for the position given to evaluate)
+	 */
+	private int positionValue(byte[] cells, int width, int height, boolean record)
+	{
+		//Take all the squares with 1 free side (unless the position is loony)
+		boolean captured = true;
+		while(captured)
+		{
+			captured = false;
+
+			for(int i = 0; i < cells.length; i++)
+			{
+				int sides = cells[i];
+				if(Integer.bitCount(sides) != 1)
+				{
+					continue;
+				}
+
+				if(isLoony(cells, width, height, i))
+				{
+					return LOONY;
+				}
+
+				setLine(cells, width, height, i, sides);
+				captured = true;
+			}
+		}
+
+		//Add up the values of each component
+		int value = 0;
+		int[] stack = new int[cells.length];
+		boolean[] visited = new boolean[cells.length];
+
+		for(int i = 0; i < cells.length; i++)
+		{
+			if(cells[i] == 0 || visited[i])
+			{
+				continue;
+			}
+
+			int componentValue = componentValue(extract(cells, width, height, i, stack, visited));
+
+			if(record)
+			{
+				componentValues[componentCount++] = componentValue;
+			}
+
+			if(componentValue == UNKNOWN || value == UNKNOWN)
+			{
+				value = UNKNOWN;
+			}
+			else
+			{
+				value ^= componentValue;
+			}
+		}
+
+		return value;
+	}
+
+	/**
+	 * Returns the value of a component (which has no squares with 1 free side)
+	 *
+	 * @param key canonical shape of the component (see extract)
+	 */
+	private int componentValue(String key)
+	{
+		Integer cached = cache.get(key);
+		if(cached != null)
+		{
+			hits++;
+			return cached;
+		}
+
+		misses++;
+
+		//Decode shape
+		int width = key.charAt(0);
+		int height = key.charAt(1);
+		byte[] cells = new byte[width * height];
+		int lineCount = 0;
+
+		for(int i = 0; i < cells.length; i++)
+		{
+			cells[i] = (byte) key.charAt(i + 2);
+			lineCount += Integer.bitCount(cells[i]);
+		}
+
+		//Count each line once (shared lines were counted twice)
+		for(int i = 0; i < cells.length; i++)
+		{
+			for(int side = TOP; side <= RIGHT; side <<= 1)
+			{
+				if((cells[i] & side) != 0 && neighbour(cells, width, height, i, side) > i)
+				{
+					lineCount--;
+				}
+			}
+		}
+
+		if(lineCount > maxLines)
+		{
+			return UNKNOWN;
+		}
+
+		//Find the values of the options (loony moves lose, so they are ignored)
+		boolean[] options = new boolean[lineCount + 1];
+		byte[] copy = new byte[cells.length];
+
+		for(int i = 0; i < cells.length; i++)
+		{
+			for(int side = TOP; side <= RIGHT; side <<= 1)
+			{
+				//Each line is played from the square with the lower index
+				int other = neighbour(cells, width, height, i, side);
+				if((cells[i] & side) == 0 || (other >= 0 && other < i))
+				{
+					continue;
+				}
+
+				System.arraycopy(cells, 0, copy, 0, cells.length);
+				setLine(copy, width, height, i, side);
+
+				int option = positionValue(copy, width, height, false);
+				if(option >= 0 && option < options.length)
+				{
+					options[option] = true;
+				}
+				else if(option == UNKNOWN)
+				{
+					return UNKNOWN;
+				}
+			}
+		}
+
+		//Minimum excluded value
+		int value = 0;
+		while(value < options.length && options[value])
+		{
+			value++;
+		}
+
+		cache.put(key, value);
+		return value;
+	}
+
+	/**
+	 * Returns true if the player taking a square can decline the last squares of its chain
+	 *
+	 * The chain is followed through squares with 2 free sides. If it ends at
+	 * the edge or at a square with 3 or more free sides, the last two squares
+	 * can be declined by setting the line at the end of the chain. If both
+	 * ends can be taken, the last four squares can be declined by setting
+	 * the line in their middle.
+	 *
+	 * @param cells free sides of each square
+	 * @param width width of the grid
+	 * @param height height of the grid
+	 * @param square index of a square with 1 free side
+	 */
+	private static boolean isLoony(byte[] cells, int width, int height, int square)
+	{
+		int previous = square;
+		int current = neighbour(cells, width, height, square, cells[square]);
+		int length = 1;
+
+		while(current >= 0 && Integer.bitCount(cells[current]) == 2)
+		{
+			//Leave through the other free side
+			int next = -1;
+			for(int side = TOP; side <= RIGHT; side <<= 1)
+			{
+				if((cells[current] & side) != 0 && neighbour(cells, width, height, current, side) != previous)
+				{
+					next = neighbour(cells, width, height, current, side);
+					break;
+				}
+			}
+
+			previous = current;
+			current = next;
+			length++;
+		}
+
+		if(current >= 0 && Integer.bitCount(cells[current]) == 1)
+		{
+			return length + 1 >= 4;
+		}
+
+		return length >= 2;
+	}
+
+	/**
+	 * Removes a component from a grid and returns its canonical shape
+	 *
+	 * The shape is a string containing the width, height and the free sides
+	 * of each square in the smallest of the component's 8 symmetric forms.
+	 *
+	 * @param cells free sides of each square
+	 * @param width width of the grid
+	 * @param height height of the grid
+	 * @param start any square in the component
+	 * @param stack temporary storage (at least as big as cells)
+	 * @param visited squares already in a component (updated)
+	 */
+	private static String extract(byte[] cells, int width, int height, int start,
+			int[] stack, boolean[] visited)
+	{
+		int minX = width, minY = height, maxX = -1, maxY = -1;
+		int count = 0;
+		int top = 0;
+
+		//Flood fill through free lines
+		stack[top++] = start;
+		visited[start] = true;
+
+		while(top > count)
+		{
+			int square = stack[count++];
+			int x = square % width;
+			int y = square / width;
+
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+
+			for(int side = TOP; side <= RIGHT; side <<= 1)
+			{
+				int other = (cells[square] & side) != 0 ? neighbour(cells, width, height, square, side) : -1;
+				if(other >= 0 && !visited[other])
+				{
+					visited[other] = true;
+					stack[top++] = other;
+				}
+			}
+		}
+
+		//Copy component into its own grid
+		int w = maxX - minX + 1;
+		int h = maxY - minY + 1;
+		byte[] shape = new byte[w * h];
+
+		for(int i = 0; i < count; i++)
+		{
+			int square = stack[i];
+			shape[(square / width - minY) * w + (square % width - minX)] = cells[square];
+		}
+
+		//Choose the smallest symmetric form
+		String best = null;
+		for(int symmetry = 0; symmetry < BoardSymmetry.COUNT; symmetry++)
+		{
+			String key = transform(shape, w, h, symmetry);
+			if(best == null || key.compareTo(best) < 0)
+			{
+				best = key;
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * Encodes a transformed shape
+	 *
+	 * The symmetry bits are the same as BoardSymmetry (1 = transpose,
+	 * 2 = flip horizontally, 4 = flip vertically; flips are done first).
+	 */
+	private static String transform(byte[] shape, int width, int height, int symmetry)
+	{
+		boolean transpose = (symmetry & 1) != 0;
+		boolean flipX = (symmetry & 2) != 0;
+		boolean flipY = (symmetry & 4) != 0;
+		int newWidth = transpose ? height : width;
+		int newHeight = transpose ? width : height;
+		char[] key = new char[shape.length + 2];
+
+		key[0] = (char) newWidth;
+		key[1] = (char) newHeight;
+
+		for(int y = 0; y < height; y++)
+		{
+			for(int x = 0; x < width; x++)
+			{
+				int sides = shape[y * width + x];
+				int newX = flipX ? width - 1 - x : x;
+				int newY = flipY ? height - 1 - y : y;
+
+				if(flipX)
+				{
+					sides = swapSides(sides, LEFT, RIGHT);
+				}
+
+				if(flipY)
+				{
+					sides = swapSides(sides, TOP, BOTTOM);
+				}
+
+				if(transpose)
+				{
+					sides = swapSides(swapSides(sides, TOP, LEFT), BOTTOM, RIGHT);
+
+					int temp = newX;
+					newX = newY;
+					newY = temp;
+				}
+
+				key[2 + newY * newWidth + newX] = (char) sides;
+			}
+		}
+
+		return new String(key);
+	}
+
+	/**
+	 * Swaps two side bits
+	 */
+	private static int swapSides(int sides, int a, int b)
+	{
+		int result = sides & ~(a | b);
+
+		if((sides & a) != 0)
+		{
+			result |= b;
+		}
+
+		if((sides & b) != 0)
+		{
+			result |= a;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns the square on the other side of a free line (or -1 if it is the edge of the component)
+	 *
+	 * @param cells free sides of each square
+	 * @param width width of the grid
+	 * @param height height of the grid
+	 * @param square index of the square
+	 * @param side side of the square (one of the side bits)
+	 */
+	private static int neighbour(byte[] cells, int width, int height, int square, int side)
+	{
+		int x = square % width;
+		int y = square / width;
+		int other;
+		int otherSide;
+
+		switch(side)
+		{
+			case TOP:
+				other = (y != 0) ? square - width : -1;
+				otherSide = BOTTOM;
+				break;
+
+			case BOTTOM:
+				other = (y != height - 1) ? square + width : -1;
+				otherSide = TOP;
+				break;
+
+			case LEFT:
+				other = (x != 0) ? square - 1 : -1;
+				otherSide = RIGHT;
+				break;
+
+			default:
+				other = (x != width - 1) ? square + 1 : -1;
+				otherSide = LEFT;
+				break;
+		}
+
+		//The line is only shared if it is free on both sides
+		return (other >= 0 && (cells[other] & otherSide) != 0) ? other : -1;
+	}
+
+	/**
+	 * Sets a free line
+	 *
+	 * @param cells free sides of each square (modified)
+	 * @param width width of the grid
+	 * @param height height of the grid
+	 * @param square index of a square next to the line
+	 * @param side side of the square the line is on
+	 */
+	private static void setLine(byte[] cells, int width, int height, int square, int side)
+	{
+		int other = neighbour(cells, width, height, square, side);
+
+		if(other >= 0)
+		{
+			int otherSide = (side == TOP) ? BOTTOM : (side == BOTTOM) ? TOP : (side == LEFT) ? RIGHT : LEFT;
+			cells[other] = (byte) (cells[other] & ~otherSide);
+		}
+
+		cells[square] = (byte) (cells[square] & ~side);
+	}
+}
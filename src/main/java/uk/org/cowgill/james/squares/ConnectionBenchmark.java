@@ -0,0 +1,281 @@
+package uk.org.cowgill.james.squares;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the MessageConnection transports using many loopback connections
+ *
+ * The client ends are always run by a reactor with one event loop thread.
+ * The server ends are run either by another single-threaded reactor or with
+ * blocking I/O on one virtual thread each. Each client sends a message
+ * containing the time, the server end echoes it back, and the client sends
+ * the next one until it has done the given number of rounds. Every message
+ * must arrive and every connection must close cleanly, otherwise the
+ * benchmark fails.
+ *
+ * The process needs two file descriptors per connection.
+ *
+ * Usage: ConnectionBenchmark [connections] [rounds] [reactor|virtual|both]
+ *
+ * @author James
+ */
+public class ConnectionBenchmark
+{
+	private static final int DEFAULT_CONNECTIONS = 10000;
+	private static final int DEFAULT_ROUNDS = 10;
+	private static final long TIMEOUT_SECONDS = 60;
+
+	private final int connections;
+	private final int rounds;
+	private final boolean virtualThreads;
+
+	//Round trip times of each message
+	private final long[] latencies;
+	private final AtomicInteger latencyCount = new AtomicInteger();
+	private final CountDownLatch replies;
+	private final CountDownLatch closed;
+	private final AtomicInteger errors = new AtomicInteger();
+
+	/**
+	 * Creates a new benchmark
+	 *
+	 * @param connections number of connections
+	 * @param rounds number of messages each client sends
+	 * @param virtualThreads true to run the server ends on virtual threads instead of a reactor
+	 */
+	public ConnectionBenchmark(int connections, int rounds, boolean virtualThreads)
+	{
+		this.connections = connections;
+		this.rounds = rounds;
+		this.virtualThreads = virtualThreads;
+		this.latencies = new long[connections * rounds];
+		this.replies = new CountDownLatch(connections * rounds);
+		this.closed = new CountDownLatch(connections);
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int connections = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_CONNECTIONS;
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+		String mode = (args.length > 2) ? args[2] : "both";
+		boolean ok = true;
+
+		if(!mode.equals("reactor") && !mode.equals("virtual") && !mode.equals("both"))
+		{
+			System.err.println("Usage: ConnectionBenchmark [connections] [rounds] [reactor|virtual|both]");
+			System.exit(1);
+		}
+
+		if(!mode.equals("virtual"))
+		{
+			ok &= new ConnectionBenchmark(connections, rounds, false).run();
+		}
+
+		if(!mode.equals("reactor"))
+		{
+			ok &= new ConnectionBenchmark(connections, rounds, true).run();
+		}
+
+		if(!ok)
+		{
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Runs the benchmark and prints the results
+	 *
+	 * @return true if every message was echoed and every connection closed cleanly
+	 */
+	public boolean run() throws IOException, InterruptedException
+	{
+		MessageReactor serverReactor = new MessageReactor(1);
+		MessageReactor clientReactor = new MessageReactor(1);
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		Client[] clients = new Client[connections];
+
+		try
+		{
+			listener.socket().bind(new InetSocketAddress(InetAddress.getByName(null), 0), connections);
+			long memoryBefore = usedMemory();
+
+			//Connect everything
+			long begin = System.nanoTime();
+
+			for(int i = 0; i < connections; i++)
+			{
+				SocketChannel client = SocketChannel.open(listener.socket().getLocalSocketAddress());
+				SocketChannel server = listener.accept();
+
+				if(virtualThreads)
+				{
+					new Echo(server);
+				}
+				else
+				{
+					new Echo(server, serverReactor);
+				}
+
+				clients[i] = new Client(client, clientReactor);
+			}
+
+			long connectTime = System.nanoTime() - begin;
+			long memory = usedMemory() - memoryBefore;
+
+			//Exchange messages
+			begin = System.nanoTime();
+
+			for(Client client : clients)
+			{
+				client.sendTime();
+			}
+
+			boolean finished = replies.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			long exchangeTime = System.nanoTime() - begin;
+
+			//Closing the clients closes the server ends
+			for(Client client : clients)
+			{
+				client.close();
+			}
+
+			finished &= closed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+			//Results
+			int count = latencyCount.get();
+			long[] sorted = Arrays.copyOf(latencies, count);
+			Arrays.sort(sorted);
+
+			System.out.printf("%s: %d connections, connected in %d ms (%.0f bytes of heap each)%n",
+					virtualThreads ? "Virtual threads" : "Reactor", connections,
+					connectTime / 1000000, (double) memory / connections);
+			System.out.printf("%d round trips in %d ms (%.0f/sec)%n",
+					count, exchangeTime / 1000000, count * 1e9 / Math.max(1, exchangeTime));
+
+			if(count != 0)
+			{
+				System.out.printf("Latency: min %d us, p50 %d us, p99 %d us, max %d us%n",
+						sorted[0] / 1000, sorted[count / 2] / 1000,
+						sorted[(int) (count * 99L / 100)] / 1000, sorted[count - 1] / 1000);
+			}
+
+			System.out.printf("Errors: %d%n", errors.get());
+
+			return finished && errors.get() == 0;
+		}
+		finally
+		{
+			listener.close();
+			serverReactor.shutdown();
+			clientReactor.shutdown();
+		}
+	}
+
+	/**
+	 * Returns the amount of heap memory in use (after a garbage collection)
+	 */
+	private static long usedMemory()
+	{
+		Runtime runtime = Runtime.getRuntime();
+
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Server end which sends every message back
+	 */
+	private class Echo extends MessageConnection
+	{
+		public Echo(SocketChannel socket, MessageReactor reactor) throws IOException
+		{
+			super(socket, reactor);
+		}
+
+		public Echo(SocketChannel socket) throws IOException
+		{
+			super(socket, MessageConnection.VIRTUAL_THREADS);
+		}
+
+		@Override
+		protected void eventError(Exception e)
+		{
+			errors.incrementAndGet();
+		}
+
+		@Override
+		protected void eventRead(ByteBuffer buffer) throws Exception
+		{
+			sendMsg(buffer);
+		}
+
+		@Override
+		protected void eventClosed() throws Exception
+		{
+			closed.countDown();
+		}
+	}
+
+	/**
+	 * Client end which times each message
+	 */
+	private class Client extends MessageConnection
+	{
+		private final ByteBuffer message = ByteBuffer.allocate(8);
+		private int sent;
+
+		public Client(SocketChannel socket, MessageReactor reactor) throws IOException
+		{
+			super(socket, reactor);
+		}
+
+		/**
+		 * Sends a message containing the current time
+		 */
+		public synchronized void sendTime() throws IOException
+		{
+			sent++;
+			message.clear();
+			message.putLong(System.nanoTime());
+			message.flip();
+			sendMsg(message);
+		}
+
+		@Override
+		protected void eventError(Exception e)
+		{
+			errors.incrementAndGet();
+		}
+
+		@Override
+		protected void eventRead(ByteBuffer buffer) throws Exception
+		{
+			latencies[latencyCount.getAndIncrement()] = System.nanoTime() - buffer.getLong();
+			replies.countDown();
+
+			synchronized(this)
+			{
+				if(sent < rounds)
+				{
+					sendTime();
+				}
+			}
+		}
+
+		@Override
+		protected void eventClosed() throws Exception
+		{
+			//The server never closes first
+			errors.incrementAndGet();
+		}
+	}
+}
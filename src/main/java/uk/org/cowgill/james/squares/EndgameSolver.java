@@ -0,0 +1,470 @@
+package uk.org.cowgill.james.squares;
+
+/**
+ * Finds the exact result of positions near the end of a game
+ *
+ * The solver searches every line to the end of the game using alpha-beta
+ * and a transposition table. Values are the number of squares the player
+ * to move will gain from the position minus the number the other player
+ * will gain (the same as SearchEngine).
+ *
+ * If a tablebase is given, positions found in it are not searched. This
+ * allows positions with more free lines than getMaxFreeLines() to be solved
+ * if they are in the tablebase.
+ *
+ * The solver searches in place on the GameState it is given, using move()
+ * and undo(). The state is restored before solve returns.
+ *
+ * This class is not thread safe.
+ *
+ * @author James
+ */
+public class EndgameSolver
+{
+	/**
+	 * The default maximum number of free lines searched without a tablebase
+	 */
+	public static final int DEFAULT_MAX_FREE_LINES = 20;
+
+	/**
+	 * The default amount of memory used by the transposition table
+	 */
+	public static final long DEFAULT_MEMORY = 16L << 20;
+
+	//Larger than any position value (the number of squares on the largest board)
+	private static final int INFINITY = GameController.MAX_BOARD_SIZE * GameController.MAX_BOARD_SIZE + 1;
+
+	private final TranspositionTable table;
+	private Tablebase tablebase;
+	private int maxFreeLines = DEFAULT_MAX_FREE_LINES;
+
+	//State of the current search
+	private GameState state;
+	private long nodes;
+	private int[][] moveBuffers = new int[0][];
+
+	//Results of the last search
+	private int bestMove;
+	private int bestValue;
+
+	/**
+	 * Creates a new solver using the default amount of memory
+	 */
+	public EndgameSolver()
+	{
+		this(new TranspositionTable(DEFAULT_MEMORY));
+	}
+
+	/**
+	 * Creates a new solver using an existing transposition table
+	 *
+	 * Entries from the solver are stored with the number of free lines as
+	 * their depth, so the table can be shared with a SearchEngine.
+	 *
+	 * @param table transposition table to use
+	 */
+	public EndgameSolver(TranspositionTable table)
+	{
+		this.table = table;
+	}
+
+	/**
+	 * Sets the tablebase used to look up positions (or null for none)
+	 *
+	 * @param tablebase tablebase to use
+	 */
+	public void setTablebase(Tablebase tablebase)
+	{
+		this.tablebase = tablebase;
+	}
+
+	/**
+	 * Returns the tablebase used to look up positions (or null)
+	 */
+	public Tablebase getTablebase()
+	{
+		return tablebase;
+	}
+
+	/**
+	 * Sets the maximum number of free lines in positions which are searched
+	 *
+	 * @param maxFreeLines maximum number of free lines
+	 */
+	public void setMaxFreeLines(int maxFreeLines)
+	{
+		if(maxFreeLines < 0)
+		{
+			throw new IllegalArgumentException("maxFreeLines must not be negative");
+		}
+
+		this.maxFreeLines = maxFreeLines;
+	}
+
+	/**
+	 * Returns the maximum number of free lines in positions which are searched
+	 */
+	public int getMaxFreeLines()
+	{
+		return maxFreeLines;
+	}
+
+	/**
+	 * Returns true if the given position can be solved quickly
+	 *
+	 * This is true if the position is in the tablebase or has at most
+	 * getMaxFreeLines() free lines.
+	 *
+	 * @param state position to check
+	 */
+	public boolean canSolve(GameState state)
+	{
+		return state.getFreeLineCount() <= maxFreeLines ||
+				(tablebase != null && tablebase.probe(state) != Tablebase.NO_ENTRY);
+	}
+
+	/**
+	 * Solves a position
+	 *
+	 * Positions which are not in the tablebase are searched, however many
+	 * free lines they have (so check canSolve first).
+	 *
+	 * @param state position to solve (it is modified during the search, then restored)
+	 * @return the exact value of the position
+	 */
+	public int solve(GameState state)
+	{
+		int freeLines = state.getFreeLineCount();
+
+		this.state = state;
+		this.nodes = 0;
+		table.newSearch();
+
+		if(moveBuffers.length < freeLines + 1)
+		{
+			moveBuffers = new int[freeLines + 1][];
+		}
+
+		//Look up the move in the tablebase first
+		long entry = (tablebase != null) ? tablebase.probe(state) : Tablebase.NO_ENTRY;
+
+		if(entry != Tablebase.NO_ENTRY)
+		{
+			int line = state.fromCanonicalLine(Tablebase.getLine(entry));
+
+			bestValue = Tablebase.getValue(entry);
+			bestMove = GameState.encodeMove(state.getLineX(line), state.getLineY(line),
+					state.isLeftLine(line));
+		}
+		else if(freeLines == 0)
+		{
+			bestValue = 0;
+			bestMove = -1;
+		}
+		else
+		{
+			bestValue = negamax(-INFINITY, INFINITY, 0);
+			bestMove = TranspositionTable.getMove(table.probe(state.getHash()));
+		}
+
+		this.state = null;
+		return bestValue;
+	}
+
+	/**
+	 * Returns the best move found by the last call to solve (or -1 if the game was over)
+	 */
+	public int getBestMove()
+	{
+		return bestMove;
+	}
+
+	/**
+	 * Returns the value found by the last call to solve
+	 */
+	public int getValue()
+	{
+		return bestValue;
+	}
+
+	/**
+	 * Returns the number of nodes visited by the last call to solve
+	 */
+	public long getNodes()
+	{
+		return nodes;
+	}
+
+	/**
+	 * Searches a position to the end of the game
+	 *
+	 * @param alpha lower bound
+	 * @param beta upper bound
+	 * @param ply number of moves from the root
+	 * @return the value of the position
+	 */
+	private int negamax(int alpha, int beta, int ply)
+	{
+		nodes++;
+
+		if(state.getFreeLineCount() == 0)
+		{
+			return 0;
+		}
+
+		//Probe tablebase (the root was checked by solve)
+		if(tablebase != null && ply != 0)
+		{
+			long entry = tablebase.probe(state);
+			if(entry != Tablebase.NO_ENTRY)
+			{
+				return Tablebase.getValue(entry);
+			}
+		}
+
+		//Probe transposition table (every entry for a position is searched to the end)
+		long key = state.getHash();
+		long entry = table.probe(key);
+		int ttMove = -1;
+
+		if(entry != TranspositionTable.NO_ENTRY)
+		{
+			ttMove = TranspositionTable.getMove(entry);
+
+			//The root is always searched so the best move is stored
+			if(ply != 0 && TranspositionTable.getDepth(entry) >= state.getFreeLineCount())
+			{
+				int value = TranspositionTable.getValue(entry);
+
+				switch(TranspositionTable.getBound(entry))
+				{
+					case TranspositionTable.BOUND_EXACT:
+						return value;
+
+					case TranspositionTable.BOUND_LOWER:
+						alpha = Math.max(alpha, value);
+						break;
+
+					case TranspositionTable.BOUND_UPPER:
+						beta = Math.min(beta, value);
+						break;
+				}
+
+				if(alpha >= beta)
+				{
+					return value;
+				}
+			}
+		}
+
+		//Search each move
+		int count = orderMoves(ply, ttMove);
+		int[] moves = moveBuffers[ply];
+		int player = state.isPlayer1Turn() ? 1 : 2;
+		int originalAlpha = alpha;
+		int best = -INFINITY;
+		int bestMove = -1;
+
+		for(int i = 0; i < count; i++)
+		{
+			int scoreBefore = state.getScore(player);
+			GameState.MoveResult result = state.move(player, moves[i]);
+			int undo = state.getUndoRecord();
+			int value;
+
+			if(result == GameState.MoveResult.OkAgain)
+			{
+				//Same player moves again
+				int gained = state.getScore(player) - scoreBefore;
+				value = gained + negamax(alpha - gained, beta - gained, ply + 1);
+			}
+			else
+			{
+				value = -negamax(-beta, -alpha, ply + 1);
+			}
+
+			state.undo(undo);
+
+			if(value > best)
+			{
+				best = value;
+				bestMove = moves[i];
+
+				if(value > alpha)
+				{
+					alpha = value;
+					if(alpha >= beta)
+					{
+						break;
+					}
+				}
+			}
+		}
+
+		//Store result
+		int bound;
+		if(best <= originalAlpha)
+		{
+			bound = TranspositionTable.BOUND_UPPER;
+		}
+		else if(best >= beta)
+		{
+			bound = TranspositionTable.BOUND_LOWER;
+		}
+		else
+		{
+			bound = TranspositionTable.BOUND_EXACT;
+		}
+
+		table.store(key, bestMove, best, state.getFreeLineCount(), bound);
+		return best;
+	}
+
+	/**
+	 * Generates and orders the moves for the given ply
+	 *
+	 * The transposition table move comes first, then moves which complete
+	 * squares, then safe moves, then the rest.
+	 *
+	 * @param ply ply to generate moves for (moves are stored in moveBuffers[ply])
+	 * @param firstMove move to search first (or -1)
+	 * @return the number of moves
+	 */
+	private int orderMoves(int ply, int firstMove)
+	{
+		int[] moves = moveBuffers[ply];
+		if(moves == null || moves.length < state.getLineCount())
+		{
+			moves = new int[state.getLineCount()];
+			moveBuffers[ply] = moves;
+		}
+
+		//Take squares which do not give away another square without searching anything else
+		if(state.getCapturableCount() != 0)
+		{
+			int move = findSafeCapture();
+			if(move >= 0)
+			{
+				moves[0] = move;
+				return 1;
+			}
+		}
+
+		int count = state.getMoves(moves);
+		int front = 0;
+
+		//Move the first move, then captures, then safe moves to the front
+		for(int pass = 0; pass < 3; pass++)
+		{
+			for(int i = front; i < count; i++)
+			{
+				int move = moves[i];
+				int line = state.getLineIndex(GameState.getMoveX(move), GameState.getMoveY(move),
+						GameState.isMoveLeft(move));
+				boolean wanted;
+
+				switch(pass)
+				{
+					case 0:
+						wanted = (move == firstMove);
+						break;
+
+					case 1:
+						wanted = isCapture(line);
+						break;
+
+					default:
+						wanted = state.isSafeLine(line);
+						break;
+				}
+
+				if(wanted)
+				{
+					moves[i] = moves[front];
+					moves[front++] = move;
+				}
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Finds a move which completes a square without giving another square its third side
+	 *
+	 * Taking such a square never makes the result worse: the player keeps
+	 * the move and the rest of the board is unchanged. Squares next to a
+	 * square with 2 sides are not included, since leaving them can be
+	 * better (declining the last squares of a chain).
+	 *
+	 * @return the move or -1 if there is none
+	 */
+	private int findSafeCapture()
+	{
+		int size = state.getSize();
+
+		for(int y = 0; y < size; y++)
+		{
+			for(int x = 0; x < size; x++)
+			{
+				if(state.getSideCount(x, y) != 3)
+				{
+					continue;
+				}
+
+				//Find the missing side and the square on the other side of it
+				int line = state.getLineIndex(x, y, false);
+				int otherX = x, otherY = y - 1;
+
+				if(state.isLineSet(line))
+				{
+					line = state.getLineIndex(x, y + 1, false);
+					otherY = y + 1;
+
+					if(state.isLineSet(line))
+					{
+						line = state.getLineIndex(x, y, true);
+						otherX = x - 1;
+						otherY = y;
+
+						if(state.isLineSet(line))
+						{
+							line = state.getLineIndex(x + 1, y, true);
+							otherX = x + 1;
+						}
+					}
+				}
+
+				if(otherX < 0 || otherY < 0 || otherX >= size || otherY >= size ||
+						state.getSideCount(otherX, otherY) != 2)
+				{
+					return GameState.encodeMove(state.getLineX(line), state.getLineY(line),
+							state.isLeftLine(line));
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Returns true if a line completes a square
+	 */
+	private boolean isCapture(int line)
+	{
+		int x = state.getLineX(line);
+		int y = state.getLineY(line);
+		int size = state.getSize();
+
+		if(state.isLeftLine(line))
+		{
+			return (x != 0 && state.getSideCount(x - 1, y) == 3) ||
+					(x != size && state.getSideCount(x, y) == 3);
+		}
+		else
+		{
+			return (y != 0 && state.getSideCount(x, y - 1) == 3) ||
+					(y != size && state.getSideCount(x, y) == 3);
+		}
+	}
+}
@@ -0,0 +1,350 @@
+package uk.org.cowgill.james.squares;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Measures the throughput of the message framing over a loopback connection
+ *
+ * A MessageConnection sends a stream of messages of one size as fast as it
+ * can, and the other end reads them with either the original framing (a
+ * copy of the old read loop, which has a single signed length byte and a
+ * fixed 512 byte buffer) or the varint framing now used by
+ * MessageConnection. Messages up to 127 bytes are the same in both
+ * framings, so they are read with both. Larger messages can only be sent
+ * with varint framing. Both readers use blocking I/O on a platform thread.
+ *
+ * Every message holds its sequence number, which is checked by the reader.
+ *
+ * The memory allocated by the reading thread is measured (after the first
+ * tenth of the messages, to skip warming up). MessageConnection should not
+ * allocate anything for each message, so the benchmark fails if it
+ * allocates a byte or more per message (ignoring the first 16 KB, which
+ * can be used by one-off allocations).
+ *
+ * Usage: FramingBenchmark [messages]
+ *
+ * @author James
+ */
+public class FramingBenchmark
+{
+	private static final int DEFAULT_MESSAGES = 1000000;
+	private static final int[] SIZES = { 10, 100, 127, 1024, 16 * 1024, 256 * 1024 };
+	private static final long MAX_BYTES = 256L * 1024 * 1024;
+	private static final long TIMEOUT_SECONDS = 120;
+
+	/**
+	 * Allocations allowed on top of one byte per message (for one-off allocations)
+	 */
+	private static final long ALLOCATION_ALLOWANCE = 16 * 1024;
+
+	private static final ThreadFactory PLATFORM_THREADS = Thread.ofPlatform().daemon().factory();
+
+	private final int size;
+	private final int messages;
+	private final boolean original;
+
+	private final CountDownLatch finished = new CountDownLatch(1);
+	private volatile String error;
+	private int received;
+
+	//Bytes allocated by the reading thread (or -1 if they cannot be measured)
+	private long allocatedBefore;
+	private volatile long allocated = -1;
+
+	/**
+	 * Creates a new benchmark run
+	 *
+	 * @param size size of each message in bytes (at least 4)
+	 * @param messages number of messages to send
+	 * @param original true to read with the original framing
+	 */
+	public FramingBenchmark(int size, int messages, boolean original)
+	{
+		this.size = size;
+		this.messages = messages;
+		this.original = original;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int messages = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_MESSAGES;
+		boolean ok = true;
+
+		for(int size : SIZES)
+		{
+			//Keep the amount of data sensible for large messages
+			int count = (int) Math.min(messages, MAX_BYTES / size);
+
+			if(size <= Byte.MAX_VALUE)
+			{
+				ok &= new FramingBenchmark(size, count, true).run();
+			}
+
+			ok &= new FramingBenchmark(size, count, false).run();
+		}
+
+		if(!ok)
+		{
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Sends the messages and prints the results
+	 *
+	 * @return true if every message arrived intact
+	 */
+	public boolean run() throws IOException, InterruptedException
+	{
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		Sender sender = null;
+		SocketChannel server = null;
+		MessageConnection receiver = null;
+
+		try
+		{
+			listener.socket().bind(new InetSocketAddress(InetAddress.getByName(null), 0));
+
+			SocketChannel client = SocketChannel.open(listener.socket().getLocalSocketAddress());
+			server = listener.accept();
+
+			if(original)
+			{
+				server.socket().setTcpNoDelay(true);
+				PLATFORM_THREADS.newThread(new OriginalReader(server)).start();
+			}
+			else
+			{
+				receiver = new Receiver(server);
+			}
+
+			sender = new Sender(client);
+			sender.setVarintFraming();
+
+			//Send everything
+			ByteBuffer message = ByteBuffer.allocate(size);
+			long begin = System.nanoTime();
+
+			for(int i = 0; i < messages; i++)
+			{
+				message.clear();
+				message.putInt(i);
+				message.rewind();
+				sender.sendMsg(message);
+			}
+
+			boolean done = finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			long time = Math.max(1, System.nanoTime() - begin);
+
+			if(!done && error == null)
+			{
+				error = "timed out";
+			}
+
+			int measured = messages - messages / 10;
+			double allocatedPerMessage = (double) allocated / measured;
+			if(!original && allocated >= ALLOCATION_ALLOWANCE + measured && error == null)
+			{
+				error = "messages are allocating memory";
+			}
+
+			System.out.printf("%7d bytes, %-8s: %9.0f messages/sec, %7.1f MB/sec, %s bytes allocated/message%s%n",
+					size, original ? "original" : "varint",
+					messages * 1e9 / time, (double) messages * size * 1e3 / time,
+					(allocated >= 0) ? String.format("%.1f", allocatedPerMessage) : "?",
+					(error == null) ? "" : " (" + error + ")");
+
+			return error == null;
+		}
+		finally
+		{
+			if(sender != null)
+			{
+				sender.close();
+			}
+
+			if(receiver != null)
+			{
+				receiver.close();
+			}
+			else if(server != null)
+			{
+				server.close();
+			}
+
+			listener.close();
+		}
+	}
+
+	/**
+	 * Checks a received message
+	 */
+	private void received(ByteBuffer buffer)
+	{
+		if(received == messages / 10)
+		{
+			allocatedBefore = allocatedBytes();
+		}
+
+		if(error == null)
+		{
+			if(buffer.remaining() != size)
+			{
+				error = "message " + received + " has " + buffer.remaining() + " bytes";
+			}
+			else if(buffer.getInt() != received)
+			{
+				error = "message " + received + " is out of order";
+			}
+		}
+
+		if(++received == messages || error != null)
+		{
+			if(allocatedBefore >= 0)
+			{
+				allocated = allocatedBytes() - allocatedBefore;
+			}
+
+			finished.countDown();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes allocated by the current thread (or -1 if unknown)
+	 */
+	private static long allocatedBytes()
+	{
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+		if(bean instanceof ThreadMXBean && ((ThreadMXBean) bean).isThreadAllocatedMemoryEnabled())
+		{
+			return ((ThreadMXBean) bean).getCurrentThreadAllocatedBytes();
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Sends the messages (nothing is read from this end)
+	 */
+	private class Sender extends MessageConnection
+	{
+		public Sender(SocketChannel socket) throws IOException
+		{
+			super(socket, PLATFORM_THREADS);
+		}
+
+		@Override
+		protected void eventError(Exception e)
+		{
+			error = e.toString();
+			finished.countDown();
+		}
+
+		@Override
+		protected void eventRead(ByteBuffer buffer) throws Exception
+		{
+		}
+
+		@Override
+		protected void eventClosed() throws Exception
+		{
+		}
+	}
+
+	/**
+	 * Reads the messages with varint framing
+	 */
+	private class Receiver extends MessageConnection
+	{
+		public Receiver(SocketChannel socket) throws IOException
+		{
+			super(socket, PLATFORM_THREADS);
+		}
+
+		@Override
+		protected void eventError(Exception e)
+		{
+			error = e.toString();
+			finished.countDown();
+		}
+
+		@Override
+		protected void eventRead(ByteBuffer buffer) throws Exception
+		{
+			received(buffer);
+		}
+
+		@Override
+		protected void eventClosed() throws Exception
+		{
+		}
+	}
+
+	/**
+	 * Reads the messages with the original framing
+	 *
+	 * This is the read loop MessageConnection used before varint framing
+	 * (only changed to stop when the buffer is empty). It allocates a new
+	 * buffer for each message and copies the rest of the data back to the
+	 * start of the buffer after each read.
+	 */
+	private class OriginalReader implements Runnable
+	{
+		private final SocketChannel socket;
+		private final byte[] rawBuffer = new byte[512];
+		private final ByteBuffer buffer = ByteBuffer.wrap(rawBuffer);
+
+		public OriginalReader(SocketChannel socket)
+		{
+			this.socket = socket;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while(received < messages && error == null && socket.read(buffer) != -1)
+				{
+					//Process messages
+					int pos = 0;
+					while(pos < buffer.position() && pos + rawBuffer[pos] < buffer.position())
+					{
+						//There is a message at the start of the buffer, so send it on
+						received(ByteBuffer.wrap(rawBuffer, pos + 1, rawBuffer[pos]).asReadOnlyBuffer());
+
+						//Advance position
+						pos += rawBuffer[pos] + 1;
+					}
+
+					//Copy the rest of the array back to the beginning
+					System.arraycopy(rawBuffer, pos, rawBuffer, 0, buffer.position() - pos);
+
+					//Update buffer position
+					buffer.position(buffer.position() - pos);
+				}
+			}
+			catch(IOException e)
+			{
+				if(error == null)
+				{
+					error = e.toString();
+				}
+			}
+
+			finished.countDown();
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package uk.org.cowgill.james.squares;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
@@ -9,8 +11,11 @@ import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
+import java.util.Arrays;
 import java.util.Random;
 
+import javax.swing.Timer;
+
 /**
  * This class controls the communications with
  * another GameController over the network and the global game state.
@@ -25,21 +30,92 @@ public class GameController
 	/**
 	 * The version of the protocol used by the controller
 	 */
-	public static final int PROTOCOL_VERSION = 1;
+	public static final int PROTOCOL_VERSION = 6;
+	
+	/**
+	 * The oldest version of the protocol the controller can speak
+	 * 
+	 * Each side sends its version in the INIT message (which every version can
+	 * read) and both sides then use the lower of the two.
+	 */
+	public static final int MIN_PROTOCOL_VERSION = 2;
+	
+	/**
+	 * The first protocol version which allows messages longer than 127 bytes
+	 */
+	static final int VARINT_FRAMING_VERSION = 3;
+	
+	/**
+	 * The first protocol version which has MOVES messages
+	 */
+	static final int MOVES_VERSION = 4;
+	
+	/**
+	 * The first protocol version which has PING and PONG messages
+	 */
+	static final int PING_VERSION = 5;
+	
+	/**
+	 * The first protocol version which has session IDs and can resume games
+	 * 
+	 * From this version, each player sends a SESSION message containing its
+	 * session ID after receiving INIT. Games can only be resumed with players
+	 * which have sent one.
+	 */
+	static final int RESUME_VERSION = 6;
+	
+	/**
+	 * Time between PING messages (in milliseconds)
+	 */
+	public static final int PING_INTERVAL = 2000;
+	
+	/**
+	 * The shortest time without any messages before the connection times out (in milliseconds)
+	 */
+	public static final int MIN_TIMEOUT = 10000;
+	
+	/**
+	 * The longest time without any messages before the connection times out (in milliseconds)
+	 */
+	public static final int MAX_TIMEOUT = 30000;
 	
-	//Master status constants
-	private static final int NOT_MASTER = 0;
-	private static final int MASTER_ME_FIRST = 1;
-	private static final int MASTER_YOU_FIRST = 2;
+	/**
+	 * The size of board used when none is given to startGame
+	 */
+	public static final int DEFAULT_BOARD_SIZE = 8;
 	
-	//Protocol message constants
-	private static final byte CMD_INIT = 0;
-	private static final byte CMD_ERROR = 1;
-	private static final byte CMD_PLAY = 2;
-	private static final byte CMD_MOVE = 3;
-	private static final byte CMD_WIN = 4;
-	private static final byte CMD_SURRENDER = 5;
-	private static final byte CMD_CHAT = 6;
+	/**
+	 * The largest board size which can be negotiated
+	 */
+	public static final int MAX_BOARD_SIZE = 1000;
+	
+	/**
+	 * The largest board size which can use MOVES messages
+	 * 
+	 * Moves in MOVES messages are 2 byte line indexes, so larger boards use
+	 * MOVE messages.
+	 */
+	static final int MAX_PACKED_BOARD_SIZE = 180;
+	
+	//Master status constants (also used by SquaresServer)
+	static final int NOT_MASTER = 0;
+	static final int MASTER_ME_FIRST = 1;
+	static final int MASTER_YOU_FIRST = 2;
+	
+	//Protocol message constants (also used by SquaresServer)
+	static final byte CMD_INIT = 0;
+	static final byte CMD_ERROR = 1;
+	static final byte CMD_PLAY = 2;
+	static final byte CMD_MOVE = 3;
+	static final byte CMD_WIN = 4;
+	static final byte CMD_SURRENDER = 5;
+	static final byte CMD_CHAT = 6;
+	static final byte CMD_MOVES = 7;
+	static final byte CMD_PING = 8;
+	static final byte CMD_PONG = 9;
+	static final byte CMD_RESUME = 10;
+	static final byte CMD_REPLAY = 11;
+	static final byte CMD_SESSION = 12;
 	
 	/**
 	 * The master status of this connection - one of the MASTER constants
@@ -47,9 +123,66 @@ public class GameController
 	private final int masterStatus;
 	
 	/**
-	 * Network connection
+	 * This controller's player name (encoded)
+	 */
+	private final byte[] nameBytes;
+	
+	/**
+	 * The session ID sent to the other player (never 0)
+	 */
+	private final long sessionId;
+	
+	/**
+	 * The session ID received from the other player (0 if games cannot be resumed)
+	 */
+	private long otherSessionId;
+	
+	/**
+	 * True if the other player's session ID has been checked (valid if controlState == Resuming)
+	 */
+	private boolean sessionChecked;
+	
+	/**
+	 * Line indexes of the moves made this game (in order)
+	 * 
+	 * The moves are numbered from 1 and the number of the last move is the
+	 * number of lines which have been drawn. When a game is resumed, the
+	 * moves the other player has not received are sent from this log.
+	 */
+	private int[] moveLog = new int[0];
+	
+	/**
+	 * The protocol version agreed with the other player (0 until INIT is received)
+	 */
+	private int protocolVersion;
+	
+	/**
+	 * MOVES message containing the moves made this turn which have not been sent yet
+	 * 
+	 * A run of moves which complete squares is sent in one message, when the
+	 * turn ends or before WIN or SURRENDER is sent.
+	 */
+	private ByteBuffer moveBatch;
+	
+	/**
+	 * Round trip times measured with PING messages (in microseconds)
+	 */
+	private final LatencyHistogram roundTripTimes = new LatencyHistogram();
+	
+	/**
+	 * The time the last message was received (from System.nanoTime)
+	 */
+	private long lastReceived;
+	
+	/**
+	 * Timer which sends PING messages and checks for timeouts (or null)
+	 */
+	private Timer pingTimer;
+	
+	/**
+	 * Network connection (replaced when a game is resumed)
 	 */
-	private final SwingMessageConnection conn;
+	private SwingMessageConnection conn;
 	
 	/**
 	 * Game output link
@@ -82,10 +215,15 @@ public class GameController
 	private boolean player1First;
 	
 	/**
-	 * Contains the state of the current game of squares (null unless controlState == Playing)
+	 * Contains the state of the current game of squares (null unless a game is in progress or suspended)
 	 */
 	private GameState gameState;
 	
+	/**
+	 * The board size requested by the other controller (valid if controlState == ReadyPlayReceived)
+	 */
+	private int otherBoardSize;
+	
 	/**
 	 * The controller state
 	 * 
@@ -114,6 +252,19 @@ public class GameController
 		 * A game is in progress
 		 */
 		Playing,
+		
+		/**
+		 * The connection was lost during a game and is waiting for resume to be called
+		 */
+		Suspended,
+		
+		/**
+		 * A game is being resumed on a new connection
+		 * 
+		 * protocolVersion is 0 until the other player's INIT is received.
+		 * The game continues when their REPLAY message is received.
+		 */
+		Resuming,
 	}
 	
 	/**
@@ -142,16 +293,31 @@ public class GameController
 		}
 		
 		//Encode name
-		ByteBuffer nameBuf = encodeString(myName, 246);
+		// INIT is sent before the version is known, so it must fit the original framing
+		ByteBuffer nameBuf = encodeString(myName, Byte.MAX_VALUE - 9);
 		if(nameBuf == null)
 		{
 			throw new IllegalArgumentException("player name is too long or malformed");
 		}
 		
+		nameBytes = new byte[nameBuf.remaining()];
+		nameBuf.get(nameBytes);
+		
+		//Choose a session ID
+		Random random = new Random();
+		long id;
+		do
+		{
+			id = random.nextLong();
+		}
+		while(id == 0);
+		
+		sessionId = id;
+		
 		//Calculate master status
 		if(isMaster)
 		{
-			masterStatus = (new Random().nextBoolean()) ? MASTER_ME_FIRST : MASTER_YOU_FIRST;
+			masterStatus = random.nextBoolean() ? MASTER_ME_FIRST : MASTER_YOU_FIRST;
 		}
 		else
 		{
@@ -163,18 +329,60 @@ public class GameController
 		playerNames[isMaster ? 0 : 1] = myName;
 		playerNum = isMaster ? 1 : 2;
 		
-		//Create message controller
-		conn = new SwingMessageConnection(channel)
+		//Create message controller and send INIT
+		conn = connect(channel);
+	}
+	
+	/**
+	 * Creates the message connection for a channel and sends the INIT message
+	 * 
+	 * Events from a connection are ignored once it has been lost or replaced.
+	 * 
+	 * @param channel channel to communicate with
+	 * @return the new connection
+	 */
+	private SwingMessageConnection connect(SocketChannel channel) throws IOException
+	{
+		SwingMessageConnection newConn = new SwingMessageConnection(channel)
 		{
+			/**
+			 * Returns true if this is the connection in use
+			 */
+			private boolean isCurrent()
+			{
+				return this == conn && controlState != ControllerState.Suspended;
+			}
+			
 			@Override
 			protected void eventSwingError(Exception e)
 			{
-				raiseGameError(e);
+				if(!isCurrent())
+				{
+					return;
+				}
+				
+				//Network errors can be recovered from by resuming
+				if(e instanceof IOException)
+				{
+					connectionLost(e);
+				}
+				else
+				{
+					raiseGameError(e);
+				}
 			}
 
 			@Override
 			protected void eventSwingRead(ByteBuffer buffer) throws Exception
 			{
+				if(!isCurrent())
+				{
+					return;
+				}
+				
+				//Any message shows the connection is alive
+				lastReceived = System.nanoTime();
+				
 				//Ignore empty messages
 				if(buffer.remaining() == 0)
 				{
@@ -182,14 +390,16 @@ public class GameController
 				}
 				
 				//Accept INIT when in correct state only
-				if(controlState == ControllerState.InitWaiting)
+				if(controlState == ControllerState.InitWaiting ||
+					(controlState == ControllerState.Resuming && protocolVersion == 0))
 				{
 					if(buffer.get() == CMD_INIT)
 					{
 						//Get version
-						if(buffer.getInt() != PROTOCOL_VERSION)
+						int otherVersion = buffer.getInt();
+						if(otherVersion < MIN_PROTOCOL_VERSION)
 						{
-							throw new GameControllerException("Both players must be using the same Squares version");
+							throw new GameControllerException("The other player is using an old Squares version");
 						}
 						
 						//Get master status
@@ -205,6 +415,30 @@ public class GameController
 						//Get player name
 						String otherName = decodeString(buffer);
 						
+						if(controlState == ControllerState.Resuming)
+						{
+							if(otherVersion < RESUME_VERSION)
+							{
+								throw new GameControllerException("The other player could not resume the game");
+							}
+							
+							protocolVersion = Math.min(otherVersion, PROTOCOL_VERSION);
+							setVarintFraming();
+							startPinging();
+							
+							//Send our session and ask for the moves after the last one we have
+							// (the game continues when their REPLAY is received)
+							sendSession();
+							
+							ByteBuffer resume = ByteBuffer.allocate(5);
+							resume.put(CMD_RESUME);
+							resume.putInt(getMoveCount());
+							resume.flip();
+							
+							sendMsgSecure(resume);
+							return;
+						}
+						
 						//Whose turn first?
 						// Here, player 1 is the master computer
 						player1First = (masterStatus | otherMasterStatus) == MASTER_ME_FIRST;
@@ -219,9 +453,26 @@ public class GameController
 							playerNames[1] = otherName;
 						}
 						
+						//Use the lower version from now on
+						protocolVersion = Math.min(otherVersion, PROTOCOL_VERSION);
+						if(protocolVersion >= VARINT_FRAMING_VERSION)
+						{
+							setVarintFraming();
+						}
+						
+						if(protocolVersion >= PING_VERSION)
+						{
+							startPinging();
+						}
+						
 						//Ready to start
 						controlState = ControllerState.Ready;
 						
+						if(protocolVersion >= RESUME_VERSION)
+						{
+							sendSession();
+						}
+						
 						//Raise ready event
 						output.gameStartup();
 					}
@@ -248,8 +499,10 @@ public class GameController
 						boolean otherPlayer1First = (buffer.get() != 0);
 						int otherScore0 = buffer.getInt();
 						int otherScore1 = buffer.getInt();
+						int otherSize = buffer.getInt();
 						
-						if(player1First != otherPlayer1First || otherScore0 != score[0] || otherScore1 != score[1])
+						if(player1First != otherPlayer1First || otherScore0 != score[0] || otherScore1 != score[1] ||
+							otherSize <= 0 || otherSize > MAX_BOARD_SIZE)
 						{
 							//Inconsistancy
 							throw new GameControllerException("Data Inconsistency (hacking attempt?)");
@@ -258,11 +511,18 @@ public class GameController
 						//Continue
 						if(gameState == null)
 						{
-							//Mark received
+							//Mark received (our game will use their board size)
+							otherBoardSize = otherSize;
 							controlState = ControllerState.ReadyPlayReceived;
 						}
 						else
 						{
+							//Both requests crossed - if the sizes differ, the master's size is used
+							if(otherSize != gameState.getSize() && masterStatus == NOT_MASTER)
+							{
+								gameState = new GameState(otherSize, player1First);
+							}
+							
 							//Game has started
 							controlState = ControllerState.Playing;
 							
@@ -286,27 +546,48 @@ public class GameController
 						int y = buffer.getInt();
 						
 						//Make the move
-						boolean moveAgain = false;
-						switch(gameState.move(playerNum ^ 3,  x, y, isLeft))
-						{
-							case OkAgain:
-								moveAgain = true;
-								
-								//Fallthrough
-							case Ok:
-								//Notify output
-								output.gameMove(gameState, !moveAgain);
-								
-								//Check for win condition
-								processWinCondition();
-								break;
-								
-							default:
-							case Illegal:
-								//This move cannot be made!
+						boolean moveAgain = (otherMove(x, y, isLeft) == GameState.MoveResult.OkAgain);
+						
+						//Notify output
+						output.gameMove(gameState, !moveAgain);
+						
+						//Check for win condition
+						processWinCondition();
+						break;
+						
+					case CMD_MOVES:
+						//Other player makes a run of moves
+						if(controlState != ControllerState.Playing || protocolVersion < MOVES_VERSION)
+						{
+							//Illegal request
+							throw new GameControllerException("Unexpected MOVES message received");
+						}
+						
+						if(!buffer.hasRemaining() || buffer.remaining() % 2 != 0)
+						{
+							throw new GameControllerException("Bad message from other controller");
+						}
+						
+						//Make all the moves (the game state rejects moves after the turn has ended)
+						GameState.MoveResult result;
+						do
+						{
+							int line = buffer.getShort() & 0xFFFF;
+							if(line >= gameState.getLineCount())
+							{
 								throw new GameControllerException("Data Inconsistency (hacking attempt?)");
+							}
+							
+							result = otherMove(gameState.getLineX(line), gameState.getLineY(line),
+									gameState.isLeftLine(line));
 						}
+						while(buffer.hasRemaining());
+						
+						//Notify output once
+						output.gameMove(gameState, result == GameState.MoveResult.Ok);
 						
+						//Check for win condition
+						processWinCondition();
 						break;
 						
 					case CMD_WIN:
@@ -332,8 +613,8 @@ public class GameController
 						break;
 						
 					case CMD_SURRENDER:
-						//Other player has surrended
-						if(controlState != ControllerState.Playing)
+						//Other player has surrended (or given up resuming)
+						if(controlState != ControllerState.Playing && controlState != ControllerState.Resuming)
 						{
 							//Ignore
 							break;
@@ -347,7 +628,137 @@ public class GameController
 						//Output chat message
 						output.gameChat(decodeString(buffer));
 						break;
+						
+					case CMD_PING:
+						if(protocolVersion < PING_VERSION)
+						{
+							throw new GameControllerException("invalid message received");
+						}
+						
+						//Reply with the same time
+						ByteBuffer pong = ByteBuffer.allocate(9);
+						pong.put(CMD_PONG);
+						pong.putLong(buffer.getLong());
+						pong.flip();
+						
+						sendMsgSecure(pong);
+						break;
+						
+					case CMD_PONG:
+						if(protocolVersion < PING_VERSION)
+						{
+							throw new GameControllerException("invalid message received");
+						}
+						
+						//Time is the one sent in our PING message
+						roundTripTimes.record((System.nanoTime() - buffer.getLong()) / 1000);
+						break;
 
+					case CMD_SESSION:
+						//Other player's session ID
+						if(protocolVersion < RESUME_VERSION)
+						{
+							throw new GameControllerException("invalid message received");
+						}
+						
+						long session = buffer.getLong();
+						if(controlState == ControllerState.Resuming)
+						{
+							//Must be the same session
+							if(session != otherSessionId)
+							{
+								throw new GameControllerException("The other player could not resume the game");
+							}
+							
+							sessionChecked = true;
+						}
+						else if(otherSessionId == 0 && session != 0)
+						{
+							otherSessionId = session;
+						}
+						else
+						{
+							throw new GameControllerException("Unexpected SESSION message received");
+						}
+						
+						break;
+					
+					case CMD_RESUME:
+						//Other player wants the moves after the last one they have
+						if(controlState != ControllerState.Resuming || !sessionChecked)
+						{
+							throw new GameControllerException("Unexpected RESUME message received");
+						}
+						
+						int otherMoveCount = buffer.getInt();
+						if(otherMoveCount < 0 || otherMoveCount > gameState.getLineCount())
+						{
+							throw new GameControllerException("Data Inconsistency (hacking attempt?)");
+						}
+						
+						//Send the moves they are missing (if they have more, they send them to us)
+						int moveCount = getMoveCount();
+						int missing = Math.max(0, moveCount - otherMoveCount);
+						
+						ByteBuffer replay = ByteBuffer.allocate(5 + 4 * missing);
+						replay.put(CMD_REPLAY);
+						replay.putInt(otherMoveCount + 1);
+						for(int i = otherMoveCount; i < moveCount; i++)
+						{
+							replay.putInt(moveLog[i]);
+						}
+						replay.flip();
+						
+						sendMsgSecure(replay);
+						break;
+					
+					case CMD_REPLAY:
+						//Moves we missed while the connection was lost
+						if(controlState != ControllerState.Resuming || !sessionChecked || buffer.remaining() % 4 != 0)
+						{
+							throw new GameControllerException("Unexpected REPLAY message received");
+						}
+						
+						//The first move must not leave a gap
+						int number = buffer.getInt();
+						if(number < 1 || number > getMoveCount() + 1)
+						{
+							throw new GameControllerException("Data Inconsistency (hacking attempt?)");
+						}
+						
+						for(; buffer.hasRemaining(); number++)
+						{
+							int line = buffer.getInt();
+							if(line < 0 || line >= gameState.getLineCount())
+							{
+								throw new GameControllerException("Data Inconsistency (hacking attempt?)");
+							}
+							
+							if(number <= getMoveCount())
+							{
+								//Already made, but it must be the same move
+								if(moveLog[number - 1] != line)
+								{
+									throw new GameControllerException("Data Inconsistency (hacking attempt?)");
+								}
+							}
+							else
+							{
+								otherMove(gameState.getLineX(line), gameState.getLineY(line),
+										gameState.isLeftLine(line));
+							}
+						}
+						
+						//Game continues
+						controlState = ControllerState.Playing;
+						
+						//Notify output
+						output.gameResumed(gameState, gameState.isPlayer1Turn() == (playerNum == 1));
+						
+						//Check for win condition
+						processWinCondition();
+						break;
+					
 					case CMD_ERROR:
 						//Error reported by other controller
 						throw new GameControllerException("Error reported by other controller");
@@ -361,6 +772,20 @@ public class GameController
 			@Override
 			protected void eventSwingClosed() throws Exception
 			{
+				if(!isCurrent())
+				{
+					return;
+				}
+				
+				stopPinging();
+				
+				//Wait for a new connection if the game can be resumed
+				if(canSuspend())
+				{
+					suspend();
+					return;
+				}
+				
 				//Close game
 				ControllerState oldState = controlState;
 				controlState = ControllerState.InitWaiting;
@@ -377,14 +802,118 @@ public class GameController
 		};
 		
 		//Send INIT message
-		ByteBuffer buf = ByteBuffer.allocate(9 + nameBuf.limit());
+		ByteBuffer buf = ByteBuffer.allocate(9 + nameBytes.length);
 		buf.put(CMD_INIT);
 		buf.putInt(PROTOCOL_VERSION);
 		buf.putInt(masterStatus);
-		buf.put(nameBuf);
+		buf.put(nameBytes);
+		buf.flip();
+		
+		newConn.sendMsg(buf);
+		return newConn;
+	}
+	
+	/**
+	 * Continues a suspended game over a new connection
+	 * 
+	 * The host should accept a new connection on the same port and the other
+	 * player should connect to it again. Both players then call this method.
+	 * The moves each player missed are sent and the game continues (calling
+	 * gameResumed) or an error is reported if the other player cannot
+	 * continue the game. If the new connection is also lost, gameSuspended
+	 * is called again.
+	 * 
+	 * @param channel channel to communicate with
+	 */
+	public void resume(SocketChannel channel)
+	{
+		if(controlState != ControllerState.Suspended)
+		{
+			throw new IllegalStateException("controller is not suspended");
+		}
+		
+		try
+		{
+			conn = connect(channel);
+		}
+		catch(IOException e)
+		{
+			//Lost straight away
+			try
+			{
+				channel.close();
+			}
+			catch(IOException e1)
+			{
+			}
+			
+			output.gameSuspended();
+			return;
+		}
+		
+		//Wait for the other player's INIT
+		controlState = ControllerState.Resuming;
+	}
+	
+	/**
+	 * Sends our session ID to the other player
+	 */
+	private void sendSession()
+	{
+		ByteBuffer buf = ByteBuffer.allocate(9);
+		buf.put(CMD_SESSION);
+		buf.putLong(sessionId);
 		buf.flip();
 		
-		conn.sendMsg(buf);
+		sendMsgSecure(buf);
+	}
+	
+	/**
+	 * Gets the protocol version agreed with the other player
+	 * 
+	 * @return the version or 0 if the other player's INIT has not been received
+	 */
+	public int getProtocolVersion()
+	{
+		return protocolVersion;
+	}
+	
+	/**
+	 * Gets the round trip times to the other player
+	 * 
+	 * A PING message is sent every PING_INTERVAL milliseconds (if the other
+	 * player's version supports them) and the time taken for the reply is
+	 * recorded.
+	 * 
+	 * @return the round trip times in microseconds (do not modify)
+	 */
+	public LatencyHistogram getRoundTripTimes()
+	{
+		return roundTripTimes;
+	}
+	
+	/**
+	 * Gets the time without any messages from the other player after which the connection times out
+	 * 
+	 * This is a few times the 99th percentile round trip time plus two ping
+	 * intervals, but is kept between MIN_TIMEOUT and MAX_TIMEOUT. Connections
+	 * to players using versions without PING messages do not time out.
+	 * 
+	 * A SquaresServer answers PING messages itself, so this only detects the
+	 * loss of the connection to the server. The server ends the match if the
+	 * opponent stops sending messages for MAX_TIMEOUT milliseconds.
+	 * 
+	 * @return the timeout in milliseconds
+	 */
+	public int getTimeout()
+	{
+		if(roundTripTimes.getCount() == 0)
+		{
+			return MAX_TIMEOUT;
+		}
+		
+		long timeout = 2 * PING_INTERVAL + 4 * roundTripTimes.getPercentile(99) / 1000;
+		return (int) Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout));
 	}
 	
 	/**
@@ -412,6 +941,14 @@ public class GameController
 		return controlState == ControllerState.Playing;
 	}
 	
+	/**
+	 * Returns true if the connection was lost during a game which has not been resumed yet
+	 */
+	public boolean isSuspended()
+	{
+		return controlState == ControllerState.Suspended || controlState == ControllerState.Resuming;
+	}
+	
 	/**
 	 * Returns true if this controller is player 1
 	 */
@@ -421,9 +958,21 @@ public class GameController
 	}
 	
 	/**
-	 * Begins a new game of squares
+	 * Begins a new game of squares using the default board size
 	 */
 	public void startGame()
+	{
+		startGame(DEFAULT_BOARD_SIZE);
+	}
+	
+	/**
+	 * Begins a new game of squares
+	 * 
+	 * If the other player has already requested a game, their board size is used instead.
+	 * 
+	 * @param size requested board size (width and height)
+	 */
+	public void startGame(int size)
 	{
 		//Must be ready first
 		if(gameState != null || (controlState != ControllerState.Ready &&
@@ -432,15 +981,28 @@ public class GameController
 			throw new IllegalStateException("controller is not ready to start a new game");
 		}
 		
+		//Validate size
+		if(size <= 0 || size > MAX_BOARD_SIZE)
+		{
+			throw new IllegalArgumentException("board size must be between 1 and " + MAX_BOARD_SIZE);
+		}
+		
+		//Accept other player's size
+		if(controlState == ControllerState.ReadyPlayReceived)
+		{
+			size = otherBoardSize;
+		}
+		
 		//Create new game state
-		gameState = new GameState(8, player1First);
+		gameState = new GameState(size, player1First);
 		
 		//Send PLAY request
-		ByteBuffer buf = ByteBuffer.allocate(10);
+		ByteBuffer buf = ByteBuffer.allocate(14);
 		buf.put(CMD_PLAY);
 		buf.put((byte) (player1First ? 1 : 0));
 		buf.putInt(score[0]);
 		buf.putInt(score[1]);
+		buf.putInt(size);
 		buf.flip();
 		
 		if(sendMsgSecure(buf))
@@ -475,8 +1037,8 @@ public class GameController
 		//Can win?
 		if(gameState.canWinNow(playerNum))
 		{
-			//Send WIN command
-			if(sendMsgSecure(ByteBuffer.wrap(new byte[] { CMD_WIN })))
+			//Send WIN command (after any moves which have not been sent)
+			if(flushMoves() && sendMsgSecure(ByteBuffer.wrap(new byte[] { CMD_WIN })))
 			{
 				gameEnded(true, true);
 			}
@@ -502,8 +1064,8 @@ public class GameController
 			throw new IllegalStateException("controller is not currently playing a game");
 		}
 		
-		//Send surrender
-		if(sendMsgSecure(ByteBuffer.wrap(new byte[] { CMD_SURRENDER })))
+		//Send surrender (after any moves which have not been sent)
+		if(flushMoves() && sendMsgSecure(ByteBuffer.wrap(new byte[] { CMD_SURRENDER })))
 		{
 			//Game ended
 			gameEnded(false, true);
@@ -513,15 +1075,26 @@ public class GameController
 	/**
 	 * Closes the connection with the other game controller
 	 * 
-	 * If playing a game, surrenders first
+	 * If playing a game (or waiting to resume one), surrenders first
 	 */
 	public void close()
 	{
+		//Give up a suspended game
+		if(controlState == ControllerState.Suspended)
+		{
+			controlState = ControllerState.InitWaiting;
+			gameEnded(false, true);
+			output.gameClosed();
+			return;
+		}
+		
 		//Ignore if closed
 		if(conn.isConnected())
 		{
+			stopPinging();
+			
 			//Surrender first if playing
-			if(controlState == ControllerState.Playing)
+			if(controlState == ControllerState.Playing || controlState == ControllerState.Resuming)
 			{
 				//Send message
 				try
@@ -546,7 +1119,7 @@ public class GameController
 			ControllerState oldState = controlState;
 			controlState = ControllerState.InitWaiting;
 			
-			if(oldState == ControllerState.Playing)
+			if(oldState == ControllerState.Playing || oldState == ControllerState.Resuming)
 			{
 				gameEnded(false, true);
 			}
@@ -583,15 +1156,10 @@ public class GameController
 				//Fallthrough
 				
 			case Ok:
-				//Send move to other controller
-				ByteBuffer buf = ByteBuffer.allocate(10);
-				buf.put(CMD_MOVE);
-				buf.put((byte) (isLeft ? 1 : 0));
-				buf.putInt(x);
-				buf.putInt(y);
-				buf.flip();
+				logMove(gameState.getLineIndex(x, y, isLeft));
 				
-				if(sendMsgSecure(buf))
+				//Send move to other controller (the run is sent together when the turn ends)
+				if(sendMove(x, y, isLeft, !moveAgain || gameState.isComplete()))
 				{
 					//Notify output
 					output.gameMove(gameState, moveAgain);
@@ -609,18 +1177,132 @@ public class GameController
 		}
 	}
 	
+	/**
+	 * Sends a move made by this player to the other controller
+	 * 
+	 * @param x x position of grid square
+	 * @param y y position of grid square
+	 * @param isLeft true if the move is for the left line. false for the top.
+	 * @param endOfRun true if this is the last move of the run (and it must be sent now)
+	 * @return true if no exceptions were thrown
+	 */
+	private boolean sendMove(int x, int y, boolean isLeft, boolean endOfRun)
+	{
+		if(protocolVersion < MOVES_VERSION || gameState.getSize() > MAX_PACKED_BOARD_SIZE)
+		{
+			//Send each move on its own
+			ByteBuffer buf = ByteBuffer.allocate(10);
+			buf.put(CMD_MOVE);
+			buf.put((byte) (isLeft ? 1 : 0));
+			buf.putInt(x);
+			buf.putInt(y);
+			buf.flip();
+			
+			return sendMsgSecure(buf);
+		}
+		
+		//Add to the batch (a turn can have one move for every line)
+		int capacity = 1 + 2 * gameState.getLineCount();
+		if(moveBatch == null || moveBatch.capacity() < capacity)
+		{
+			moveBatch = ByteBuffer.allocate(capacity);
+		}
+		
+		if(moveBatch.position() == 0)
+		{
+			moveBatch.put(CMD_MOVES);
+		}
+		
+		moveBatch.putShort((short) gameState.getLineIndex(x, y, isLeft));
+		
+		return !endOfRun || flushMoves();
+	}
+	
+	/**
+	 * Sends the moves in the batch (if any)
+	 * 
+	 * @return true if no exceptions were thrown
+	 */
+	private boolean flushMoves()
+	{
+		if(moveBatch == null || moveBatch.position() == 0)
+		{
+			return true;
+		}
+		
+		moveBatch.flip();
+		boolean sent = sendMsgSecure(moveBatch);
+		moveBatch.clear();
+		
+		return sent;
+	}
+	
+	/**
+	 * Makes a move for the other player
+	 * 
+	 * @param x x position of grid square
+	 * @param y y position of grid square
+	 * @param isLeft true if the move is for the left line. false for the top.
+	 * @return the result of the move (Ok or OkAgain)
+	 * @throws GameControllerException if the move is illegal
+	 */
+	private GameState.MoveResult otherMove(int x, int y, boolean isLeft) throws GameControllerException
+	{
+		//The ^3 here swaps 1 with 2
+		GameState.MoveResult result = gameState.move(playerNum ^ 3, x, y, isLeft);
+		if(result == GameState.MoveResult.Illegal)
+		{
+			//This move cannot be made!
+			throw new GameControllerException("Data Inconsistency (hacking attempt?)");
+		}
+		
+		logMove(gameState.getLineIndex(x, y, isLeft));
+		return result;
+	}
+	
+	/**
+	 * Returns the number of moves made in the current game
+	 */
+	private int getMoveCount()
+	{
+		return gameState.getLineCount() - gameState.getFreeLineCount();
+	}
+	
+	/**
+	 * Adds a move which has just been made to the move log
+	 * 
+	 * @param line line index of the move
+	 */
+	private void logMove(int line)
+	{
+		int number = getMoveCount();
+		if(moveLog.length < number)
+		{
+			moveLog = Arrays.copyOf(moveLog, Math.min(Math.max(16, 2 * moveLog.length),
+					gameState.getLineCount()));
+		}
+		
+		moveLog[number - 1] = line;
+	}
+	
 	/**
 	 * Sends some chat text to the opponent
 	 *
 	 * The opponent must be connected before text is sent
 	 *
 	 * @param text text to send
-	 * @return false if the text was too long or malformed
+	 * @return false if the text was too long or malformed or the game is suspended
 	 */
 	public boolean chat(String text)
 	{
+		//Nowhere to send it
+		if(controlState == ControllerState.Suspended)
+		{
+			return false;
+		}
+		
 		//Encode message
-		ByteBuffer chatBuf = encodeString(text, 254);
+		ByteBuffer chatBuf = encodeString(text, conn.getMaxMessageSize() - 1);
 		if(chatBuf == null)
 		{
 			return false;
@@ -654,12 +1336,12 @@ public class GameController
 			if(gameState.getScore(firstPlayer) > gameState.getScore(secondPlayer))
 			{
 				//First player won
-				iWon = (playerNum == 1);
+				iWon = (playerNum == firstPlayer);
 			}
 			else
 			{
 				//Second player won
-				iWon = (playerNum == 2);
+				iWon = (playerNum == secondPlayer);
 			}
 			
 			//End game
@@ -679,6 +1361,12 @@ public class GameController
 		gameState = null;
 		controlState = ControllerState.Ready;
 		
+		//Moves which were not sent are no longer needed
+		if(moveBatch != null)
+		{
+			moveBatch.clear();
+		}
+		
 		//Update scores
 		if(iWon)
 		{
@@ -696,6 +1384,115 @@ public class GameController
 		player1First = !player1First;
 	}
 	
+	/**
+	 * Starts sending PING messages
+	 */
+	private void startPinging()
+	{
+		pingTimer = new Timer(PING_INTERVAL, new ActionListener()
+		{
+			@Override
+			public void actionPerformed(ActionEvent e)
+			{
+				ping();
+			}
+		});
+		
+		pingTimer.start();
+	}
+	
+	/**
+	 * Stops sending PING messages
+	 */
+	private void stopPinging()
+	{
+		if(pingTimer != null)
+		{
+			pingTimer.stop();
+			pingTimer = null;
+		}
+	}
+	
+	/**
+	 * Returns true if the game should be suspended when the connection is lost
+	 */
+	private boolean canSuspend()
+	{
+		return otherSessionId != 0 && (controlState == ControllerState.Playing ||
+				controlState == ControllerState.Resuming);
+	}
+	
+	/**
+	 * Handles a network error or timeout
+	 * 
+	 * If the game can be resumed, the connection is closed and the game is
+	 * suspended. Otherwise the error is raised.
+	 * 
+	 * @param e exception to report if the game cannot be resumed
+	 */
+	private void connectionLost(Exception e)
+	{
+		if(!canSuspend())
+		{
+			raiseGameError(e);
+			return;
+		}
+		
+		//Drop the connection and wait for a new one
+		try
+		{
+			conn.close();
+		}
+		catch(IOException e1)
+		{
+		}
+		
+		suspend();
+	}
+	
+	/**
+	 * Suspends the current game after the connection has been lost
+	 * 
+	 * The game continues when resume is called with a new connection.
+	 */
+	private void suspend()
+	{
+		stopPinging();
+		
+		controlState = ControllerState.Suspended;
+		protocolVersion = 0;
+		sessionChecked = false;
+		
+		//Moves which were not sent are sent from the move log instead
+		if(moveBatch != null)
+		{
+			moveBatch.clear();
+		}
+		
+		output.gameSuspended();
+	}
+	
+	/**
+	 * Checks for a timeout and sends a PING message
+	 */
+	private void ping()
+	{
+		long now = System.nanoTime();
+		
+		if(now - lastReceived > getTimeout() * 1000000L)
+		{
+			connectionLost(new GameControllerException("Connection timed out"));
+			return;
+		}
+		
+		ByteBuffer buf = ByteBuffer.allocate(9);
+		buf.put(CMD_PING);
+		buf.putLong(now);
+		buf.flip();
+		
+		sendMsgSecure(buf);
+	}
+	
 	/**
 	 * Raises the game error e to the game output
 	 * 
@@ -705,6 +1502,8 @@ public class GameController
 	 */
 	private void raiseGameError(Exception e)
 	{
+		stopPinging();
+		
 		GameControllerException wrapped;
 		
 		//What sort of error?
@@ -779,8 +1578,8 @@ public class GameController
 		}
 		catch (IOException e)
 		{
-			//Raise error
-			raiseGameError(e);
+			//Raise error (or suspend the game)
+			connectionLost(e);
 			return false;
 		}
 		
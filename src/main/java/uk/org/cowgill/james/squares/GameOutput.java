@@ -46,6 +46,9 @@ public interface GameOutput
 	/**
 	 * Called after a move has been made
 	 * 
+	 * When the other player makes a run of moves which are sent together,
+	 * this is only called once (after the last one).
+	 * 
 	 * @param state the state of the game (do not modify)
 	 * @param yourMove it is your move now
 	 */
@@ -60,4 +63,23 @@ public interface GameOutput
 	 * @param player2Score the score for player 2
 	 */
 	public void gameEnd(boolean youWon, boolean premature, int player1Score, int player2Score);
+	
+	/**
+	 * Called when the connection is lost during a game which can be resumed
+	 * 
+	 * The game continues if GameController.resume is called with a new
+	 * connection, or is given up by calling GameController.close.
+	 */
+	public void gameSuspended();
+	
+	/**
+	 * Called when a suspended game has been resumed
+	 * 
+	 * Any moves made by the other player while the connection was lost have
+	 * been added to the state.
+	 * 
+	 * @param state the state of the game (do not modify)
+	 * @param yourMove it is your move now
+	 */
+	public void gameResumed(GameState state, boolean yourMove);
 }
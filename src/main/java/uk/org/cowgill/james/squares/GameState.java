@@ -1,5 +1,7 @@
 package uk.org.cowgill.james.squares;
 
+import java.util.Arrays;
+
 /**
  * Contains information about a single game of squares
  * 
@@ -8,12 +10,84 @@ package uk.org.cowgill.james.squares;
 public class GameState
 {
 	private boolean player1Turn;
+	private boolean player1First;
 	private int size;
 	private int[] score = new int[2];
 	
-	private byte[][] squareValue;
-	private boolean[][] topLine;
-	private boolean[][] leftLine;
+	/**
+	 * Owner of each square packed into 2 bits (indexed by y * size + x)
+	 */
+	private long[] squareValue;
+	
+	/**
+	 * Bitset containing every line on the board
+	 * 
+	 * The top lines come first (indexed by y * size + x), followed by the
+	 * left lines (indexed by topLineCount + y * (size + 1) + x).
+	 */
+	private long[] lines;
+	
+	/**
+	 * Number of top lines (and the index of the first left line)
+	 */
+	private int topLineCount;
+	
+	/**
+	 * Number of lines which have not been set
+	 */
+	private int freeLines;
+	
+	/**
+	 * Number of sides set around each square (indexed by y * size + x)
+	 */
+	private byte[] sideCount;
+	
+	/**
+	 * Bitset of the free lines which do not give any square its third or fourth side
+	 */
+	private long[] safeLines;
+	
+	/**
+	 * Number of lines in safeLines
+	 */
+	private int safeLineCount;
+	
+	/**
+	 * Number of squares with exactly 3 sides
+	 */
+	private int capturableCount;
+	
+	/**
+	 * Chain analyzer (null until getChainAnalyzer() is first used)
+	 */
+	private ChainAnalyzer chains;
+	
+	/**
+	 * Zobrist hash of the lines and the player to move
+	 */
+	private long hash;
+	
+	/**
+	 * Zobrist hashes of the position transformed by each BoardSymmetry
+	 * 
+	 * This is null until getCanonicalHash() is first used.
+	 */
+	private long[] symmetryHashes;
+	
+	/**
+	 * Undo record for the last successful move
+	 */
+	private int lastUndo = -1;
+	
+	//Undo record layout
+	// The low bits contain the line index, the high bits record which squares were completed
+	private static final int UNDO_LINE_MASK = 0x00FFFFFF;
+	private static final int UNDO_FIRST_SQUARE = 0x01000000;
+	private static final int UNDO_SECOND_SQUARE = 0x02000000;
+	
+	//Zobrist key constants
+	private static final long HASH_SIDE_KEY = 0x5BD1E9955BD1E995L;
+	private static final long HASH_GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
 	
 	/**
 	 * The result of a move operation
@@ -44,12 +118,106 @@ public class GameState
 	 */
 	public GameState(int size, boolean player1Starts)
 	{
+		//Validate size
+		if(size <= 0)
+		{
+			throw new IllegalArgumentException("size must be positive");
+		}
+		
 		//Initialize game
 		this.size = size;
+		squareValue = new long[(size * size + 31) >>> 5];
+		topLineCount = size * (size + 1);
+		lines = new long[(2 * topLineCount + 63) >>> 6];
+		sideCount = new byte[size * size];
+		safeLines = new long[lines.length];
+		
+		clear(player1Starts);
+	}
+	
+	/**
+	 * Clears the board and scores to start a new game of the same size
+	 * 
+	 * No memory is allocated, so one state can be reused for many games.
+	 * 
+	 * @param player1Starts true if player 1 starts first (rather than player 2)
+	 */
+	public void reset(boolean player1Starts)
+	{
+		clear(player1Starts);
+	}
+	
+	/**
+	 * Clears the board and scores (used by the constructor and reset)
+	 * 
+	 * @param player1Starts true if player 1 starts first (rather than player 2)
+	 */
+	private void clear(boolean player1Starts)
+	{
 		player1Turn = player1Starts;
-		squareValue = new byte[size][size];
-		topLine 	= new boolean[size + 1][size + 1];
-		leftLine 	= new boolean[size + 1][size + 1];
+		player1First = player1Starts;
+		score[0] = 0;
+		score[1] = 0;
+		freeLines = 2 * topLineCount;
+		capturableCount = 0;
+		lastUndo = -1;
+		
+		Arrays.fill(squareValue, 0);
+		Arrays.fill(lines, 0);
+		Arrays.fill(sideCount, (byte) 0);
+		
+		//No lines are set, so only the player to move is hashed
+		hash = player1Starts ? 0 : HASH_SIDE_KEY;
+		
+		//Initially, every line is safe
+		safeLineCount = freeLines;
+		Arrays.fill(safeLines, -1L);
+		
+		if((freeLines & 63) != 0)
+		{
+			safeLines[safeLines.length - 1] = (1L << freeLines) - 1;
+		}
+		
+		//Reset the symmetric hashes and chains if they are being used
+		if(symmetryHashes != null)
+		{
+			Arrays.fill(symmetryHashes, hash);
+		}
+		
+		if(chains != null)
+		{
+			chains.reset();
+		}
+	}
+	
+	/**
+	 * Creates a copy of another game state
+	 * 
+	 * The chain analyzer is not copied (it is recreated on first use).
+	 * 
+	 * @param other state to copy
+	 */
+	public GameState(GameState other)
+	{
+		player1Turn = other.player1Turn;
+		player1First = other.player1First;
+		size = other.size;
+		score = other.score.clone();
+		squareValue = other.squareValue.clone();
+		lines = other.lines.clone();
+		topLineCount = other.topLineCount;
+		freeLines = other.freeLines;
+		sideCount = other.sideCount.clone();
+		safeLines = other.safeLines.clone();
+		safeLineCount = other.safeLineCount;
+		capturableCount = other.capturableCount;
+		hash = other.hash;
+		lastUndo = other.lastUndo;
+		
+		if(other.symmetryHashes != null)
+		{
+			symmetryHashes = other.symmetryHashes.clone();
+		}
 	}
 	
 	/**
@@ -60,6 +228,14 @@ public class GameState
 		return player1Turn;
 	}
 	
+	/**
+	 * Returns true if player 1 made the first move of the game
+	 */
+	public boolean isPlayer1First()
+	{
+		return player1First;
+	}
+	
 	/**
 	 * Makes a move on behalf of the given player
 	 * 
@@ -88,72 +264,570 @@ public class GameState
 		}
 		
 		//Do move
+		int line;
+		int first;
+		int second;
+		
 		if(isLeft)
 		{
 			//Move already made (or invalid)?
-			if(y == size || leftLine[x][y])
+			line = topLineCount + y * (size + 1) + x;
+			if(y == size || isLineSet(line))
 			{
 				return MoveResult.Illegal;
 			}
 			
-			//Set line
-			leftLine[x][y] = true;
+			//Squares to the left and right
+			first = (x != 0) ? y * size + x - 1 : -1;
+			second = (x != size) ? y * size + x : -1;
+		}
+		else
+		{
+			//Move already made (or invalid)?
+			line = y * size + x;
+			if(x == size || isLineSet(line))
+			{
+				return MoveResult.Illegal;
+			}
 			
-			//Check square to the left
-			if(x != 0 && (leftLine[x - 1][y] && topLine[x - 1][y] && topLine[x - 1][y + 1]))
+			//Squares to the top and bottom
+			first = (y != 0) ? line - size : -1;
+			second = (y != size) ? line : -1;
+		}
+		
+		//Set line
+		updateChains(first, second, false);
+		lines[line >>> 6] |= 1L << line;
+		hash ^= lineKey(line);
+		updateSymmetryHashes(line);
+		freeLines--;
+		setLineSafe(line, false);
+		
+		int undo = line;
+		
+		//Check square to the left / top
+		if(first >= 0 && addSide(first))
+		{
+			//Square is coloured
+			setSquareColour(first, player);
+			score[player - 1]++;
+			undo |= UNDO_FIRST_SQUARE;
+			res = MoveResult.OkAgain;
+		}
+		
+		//Check square to the right / bottom
+		if(second >= 0 && addSide(second))
+		{
+			//Square is coloured
+			setSquareColour(second, player);
+			score[player - 1]++;
+			undo |= UNDO_SECOND_SQUARE;
+			res = MoveResult.OkAgain;
+		}
+		
+		updateChains(first, second, true);
+		
+		//If we're here, the move was good
+		if(res == MoveResult.Ok)
+		{
+			player1Turn = !player1Turn;
+			hash ^= HASH_SIDE_KEY;
+			updateSymmetryHashes(-1);
+		}
+		
+		lastUndo = undo;
+		return res;
+	}
+	
+	/**
+	 * Returns the undo record for the last successful move
+	 * 
+	 * The record can be passed to undo() to reverse the move. Records must
+	 * be undone in the reverse order to which the moves were made.
+	 * 
+	 * @return the undo record or -1 if no moves have been made
+	 */
+	public int getUndoRecord()
+	{
+		return lastUndo;
+	}
+	
+	/**
+	 * Reverses a move previously made using move()
+	 * 
+	 * This method does not check its input. The record must belong to the
+	 * most recent move which has not already been undone.
+	 * 
+	 * @param undo undo record returned by getUndoRecord() after the move
+	 */
+	public void undo(int undo)
+	{
+		int line = undo & UNDO_LINE_MASK;
+		int first = firstSquare(line);
+		int second = secondSquare(line);
+		
+		//If no squares were completed, the turn changed
+		if((undo & (UNDO_FIRST_SQUARE | UNDO_SECOND_SQUARE)) == 0)
+		{
+			player1Turn = !player1Turn;
+			hash ^= HASH_SIDE_KEY;
+			updateSymmetryHashes(-1);
+		}
+		
+		int player = player1Turn ? 1 : 2;
+		
+		//Clear line
+		updateChains(first, second, false);
+		lines[line >>> 6] &= ~(1L << line);
+		hash ^= lineKey(line);
+		updateSymmetryHashes(line);
+		freeLines++;
+		
+		//Clear completed squares
+		if((undo & UNDO_FIRST_SQUARE) != 0)
+		{
+			clearSquareColour(first);
+			score[player - 1]--;
+		}
+		
+		if((undo & UNDO_SECOND_SQUARE) != 0)
+		{
+			clearSquareColour(second);
+			score[player - 1]--;
+		}
+		
+		//Update side counts
+		if(first >= 0)
+		{
+			removeSide(first);
+		}
+		
+		if(second >= 0)
+		{
+			removeSide(second);
+		}
+		
+		updateLineSafe(line);
+		updateChains(first, second, true);
+		lastUndo = -1;
+	}
+	
+	/**
+	 * Returns the chain analyzer for this game
+	 * 
+	 * The analyzer is created on the first call and then kept up to date
+	 * by move() and undo().
+	 */
+	public ChainAnalyzer getChainAnalyzer()
+	{
+		if(chains == null)
+		{
+			chains = new ChainAnalyzer(this);
+		}
+		
+		return chains;
+	}
+	
+	/**
+	 * Adds or removes the squares either side of a line from the chain analyzer
+	 * 
+	 * Squares are removed before a line changes and added afterwards, in
+	 * both cases only if they have exactly 2 sides.
+	 * 
+	 * @param first first square (or -1)
+	 * @param second second square (or -1)
+	 * @param add true to add squares, false to remove them
+	 */
+	private void updateChains(int first, int second, boolean add)
+	{
+		if(chains != null)
+		{
+			if(first >= 0 && sideCount[first] == 2)
 			{
-				//Square to the left is coloured
-				squareValue[x - 1][y] = (byte) player;
-				score[player - 1]++;
-				res = MoveResult.OkAgain;
+				if(add)
+				{
+					chains.addSquare(first);
+				}
+				else
+				{
+					chains.removeSquare(first);
+				}
 			}
 			
-			//Check square to the right
-			if(x != size && (leftLine[x + 1][y] && topLine[x][y] && topLine[x][y + 1]))
+			if(second >= 0 && sideCount[second] == 2)
 			{
-				//Square to the right is coloured
-				squareValue[x][y] = (byte) player;
-				score[player - 1]++;
-				res = MoveResult.OkAgain;
+				if(add)
+				{
+					chains.addSquare(second);
+				}
+				else
+				{
+					chains.removeSquare(second);
+				}
 			}
 		}
-		else
+	}
+	
+	/**
+	 * Returns the Zobrist hash of the current position
+	 * 
+	 * The hash covers the lines which have been set and the player to move.
+	 * It is updated incrementally by move() and undo().
+	 */
+	public long getHash()
+	{
+		return hash;
+	}
+	
+	/**
+	 * Calculates the Zobrist hash of the current position from scratch
+	 * 
+	 * This always equals getHash() and is intended for verifying it.
+	 */
+	public long computeHash()
+	{
+		long result = player1Turn ? 0 : HASH_SIDE_KEY;
+		
+		for(int i = 0; i < lines.length; i++)
 		{
-			//Move already made (or invalid)?
-			if(x == size || topLine[x][y])
+			//Visit each set bit
+			for(long bits = lines[i]; bits != 0; bits &= bits - 1)
 			{
-				return MoveResult.Illegal;
+				result ^= lineKey((i << 6) + Long.numberOfTrailingZeros(bits));
+			}
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Returns the symmetry-canonical hash of the current position
+	 * 
+	 * This is the smallest of the hashes of the 8 symmetric forms of the
+	 * position, so all symmetric positions have the same canonical hash.
+	 * 
+	 * The first call calculates the symmetric hashes from scratch. After
+	 * that, they are updated incrementally by move() and undo().
+	 */
+	public long getCanonicalHash()
+	{
+		return getSymmetryHashes()[getCanonicalSymmetry()];
+	}
+	
+	/**
+	 * Returns the symmetry which transforms this position into its canonical form
+	 * 
+	 * @see BoardSymmetry
+	 */
+	public int getCanonicalSymmetry()
+	{
+		long[] hashes = getSymmetryHashes();
+		int best = BoardSymmetry.IDENTITY;
+		
+		for(int i = 1; i < BoardSymmetry.COUNT; i++)
+		{
+			if(hashes[i] < hashes[best])
+			{
+				best = i;
+			}
+		}
+		
+		return best;
+	}
+	
+	/**
+	 * Writes the lines of the canonical form of this position into a bitset
+	 * 
+	 * The bitset uses the same layout as the line indexes (see getLineIndex).
+	 * 
+	 * @param dest destination bitset (must have at least (getLineCount() + 63) / 64 elements)
+	 */
+	public void getCanonicalLines(long[] dest)
+	{
+		int symmetry = getCanonicalSymmetry();
+		
+		for(int i = 0; i < lines.length; i++)
+		{
+			dest[i] = 0;
+		}
+		
+		for(int i = 0; i < lines.length; i++)
+		{
+			for(long bits = lines[i]; bits != 0; bits &= bits - 1)
+			{
+				int line = BoardSymmetry.transformLine(size, symmetry,
+						(i << 6) + Long.numberOfTrailingZeros(bits));
+				dest[line >>> 6] |= 1L << line;
 			}
+		}
+	}
+	
+	/**
+	 * Converts a line in the canonical form of this position into a line on the real board
+	 * 
+	 * @param line index of the line on the canonical board
+	 * @return index of the line on the real board
+	 */
+	public int fromCanonicalLine(int line)
+	{
+		return BoardSymmetry.transformLine(size,
+				BoardSymmetry.inverse(getCanonicalSymmetry()), line);
+	}
+	
+	/**
+	 * Converts a line on the real board into a line in the canonical form of this position
+	 * 
+	 * @param line index of the line on the real board
+	 * @return index of the line on the canonical board
+	 */
+	public int toCanonicalLine(int line)
+	{
+		return BoardSymmetry.transformLine(size, getCanonicalSymmetry(), line);
+	}
+	
+	/**
+	 * Returns the symmetric hashes, calculating them if needed
+	 */
+	private long[] getSymmetryHashes()
+	{
+		if(symmetryHashes == null)
+		{
+			long[] hashes = new long[BoardSymmetry.COUNT];
+			long sideKey = player1Turn ? 0 : HASH_SIDE_KEY;
 			
-			//Set line
-			topLine[x][y] = true;
+			for(int s = 0; s < BoardSymmetry.COUNT; s++)
+			{
+				hashes[s] = sideKey;
+			}
 			
-			//Check square to the top
-			if(y != 0 && (topLine[x][y - 1] && leftLine[x][y - 1] && leftLine[x + 1][y - 1]))
+			for(int i = 0; i < lines.length; i++)
 			{
-				//Square to the top is coloured
-				squareValue[x][y - 1] = (byte) player;
-				score[player - 1]++;
-				res = MoveResult.OkAgain;
+				for(long bits = lines[i]; bits != 0; bits &= bits - 1)
+				{
+					int line = (i << 6) + Long.numberOfTrailingZeros(bits);
+					
+					for(int s = 0; s < BoardSymmetry.COUNT; s++)
+					{
+						hashes[s] ^= lineKey(BoardSymmetry.transformLine(size, s, line));
+					}
+				}
 			}
 			
-			//Check square to the bottom
-			if(y != size && (topLine[x][y + 1] && leftLine[x][y] && leftLine[x + 1][y]))
+			symmetryHashes = hashes;
+		}
+		
+		return symmetryHashes;
+	}
+	
+	/**
+	 * Updates the symmetric hashes (if they are being used) after a line or the turn changes
+	 * 
+	 * @param line index of the line which changed or -1 if the turn changed
+	 */
+	private void updateSymmetryHashes(int line)
+	{
+		if(symmetryHashes != null)
+		{
+			for(int s = 0; s < BoardSymmetry.COUNT; s++)
 			{
-				//Square to the bottom is coloured
-				squareValue[x][y] = (byte) player;
-				score[player - 1]++;
-				res = MoveResult.OkAgain;
+				symmetryHashes[s] ^= (line < 0) ? HASH_SIDE_KEY :
+						lineKey(BoardSymmetry.transformLine(size, s, line));
 			}
 		}
+	}
+	
+	/**
+	 * Returns the Zobrist key for a line
+	 * 
+	 * The keys are generated by mixing the board size and line index (using
+	 * the SplitMix64 finalizer) so no key tables need to be stored, even for
+	 * large boards. Keys are the same in every process.
+	 * 
+	 * @param line index of the line in the lines bitset
+	 */
+	private long lineKey(int line)
+	{
+		long z = ((long) size << 32 | line) * HASH_GOLDEN_GAMMA;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+	
+	/**
+	 * Returns true if the given line is set
+	 * 
+	 * @param line index of the line in the lines bitset
+	 */
+	boolean isLineSet(int line)
+	{
+		return (lines[line >>> 6] & (1L << line)) != 0;
+	}
+	
+	/**
+	 * Returns the square to the left of / above a line
+	 * 
+	 * @param line index of the line
+	 * @return the square index or -1 if the line is on the edge of the board
+	 */
+	private int firstSquare(int line)
+	{
+		if(line >= topLineCount)
+		{
+			int y = (line - topLineCount) / (size + 1);
+			int x = (line - topLineCount) - y * (size + 1);
+			return (x != 0) ? y * size + x - 1 : -1;
+		}
+		else
+		{
+			return (line >= size) ? line - size : -1;
+		}
+	}
+	
+	/**
+	 * Returns the square to the right of / below a line
+	 * 
+	 * @param line index of the line
+	 * @return the square index or -1 if the line is on the edge of the board
+	 */
+	private int secondSquare(int line)
+	{
+		if(line >= topLineCount)
+		{
+			int y = (line - topLineCount) / (size + 1);
+			int x = (line - topLineCount) - y * (size + 1);
+			return (x != size) ? y * size + x : -1;
+		}
+		else
+		{
+			return (line < size * size) ? line : -1;
+		}
+	}
+	
+	/**
+	 * Adds one to the side count of a square
+	 * 
+	 * @param square index of the square
+	 * @return true if the square has been completed
+	 */
+	private boolean addSide(int square)
+	{
+		int count = ++sideCount[square];
 		
-		//If we're here, the move was good
-		if(res == MoveResult.Ok)
+		//Lines around a square with 2 sides are no longer safe
+		if(count == 2)
 		{
-			player1Turn = !player1Turn;
+			updateSquareLinesSafe(square);
+		}
+		else if(count == 3)
+		{
+			capturableCount++;
+		}
+		else if(count == 4)
+		{
+			capturableCount--;
 		}
 		
-		return res;
+		return count == 4;
+	}
+	
+	/**
+	 * Removes one from the side count of a square
+	 * 
+	 * @param square index of the square
+	 */
+	private void removeSide(int square)
+	{
+		int count = sideCount[square]--;
+		
+		//Lines around a square with 1 side may be safe again
+		if(count == 2)
+		{
+			updateSquareLinesSafe(square);
+		}
+		else if(count == 3)
+		{
+			capturableCount--;
+		}
+		else if(count == 4)
+		{
+			capturableCount++;
+		}
+	}
+	
+	/**
+	 * Recalculates whether each of the lines around a square is safe
+	 * 
+	 * @param square index of the square
+	 */
+	private void updateSquareLinesSafe(int square)
+	{
+		int left = topLineCount + square + square / size;
+		
+		updateLineSafe(square);
+		updateLineSafe(square + size);
+		updateLineSafe(left);
+		updateLineSafe(left + 1);
+	}
+	
+	/**
+	 * Recalculates whether a line is safe
+	 * 
+	 * A line is safe if it is free and does not give any square its third or
+	 * fourth side (so lines which complete a square are not safe).
+	 * 
+	 * @param line index of the line
+	 */
+	private void updateLineSafe(int line)
+	{
+		boolean safe = !isLineSet(line);
+		
+		if(safe)
+		{
+			int first = firstSquare(line);
+			int second = secondSquare(line);
+			
+			safe = (first < 0 || sideCount[first] <= 1) && (second < 0 || sideCount[second] <= 1);
+		}
+		
+		setLineSafe(line, safe);
+	}
+	
+	/**
+	 * Adds or removes a line from the set of safe lines
+	 * 
+	 * @param line index of the line
+	 * @param safe true if the line is safe
+	 */
+	private void setLineSafe(int line, boolean safe)
+	{
+		long bit = 1L << line;
+		
+		if(((safeLines[line >>> 6] & bit) != 0) != safe)
+		{
+			safeLines[line >>> 6] ^= bit;
+			safeLineCount += safe ? 1 : -1;
+		}
+	}
+	
+	/**
+	 * Sets the colour of a blank square
+	 * 
+	 * @param square index of the square (y * size + x)
+	 * @param player player who completed the square
+	 */
+	private void setSquareColour(int square, int player)
+	{
+		squareValue[square >>> 5] |= (long) player << ((square & 31) << 1);
+	}
+	
+	/**
+	 * Sets a square back to blank
+	 * 
+	 * @param square index of the square (y * size + x)
+	 */
+	private void clearSquareColour(int square)
+	{
+		squareValue[square >>> 5] &= ~(3L << ((square & 31) << 1));
 	}
 	
 	/**
@@ -175,6 +849,267 @@ public class GameState
 		}
 	}
 	
+	/**
+	 * Packs a move into an int
+	 * 
+	 * The arguments are the same as those given to move() and sent in MOVE messages.
+	 * 
+	 * @param x x coordinate (0 to 32767)
+	 * @param y y coordinate (0 to 32767)
+	 * @param isLeft true if the move is on the left line of the given coordinate
+	 * @return the packed move
+	 */
+	public static int encodeMove(int x, int y, boolean isLeft)
+	{
+		return (x << 16) | (y << 1) | (isLeft ? 1 : 0);
+	}
+	
+	/**
+	 * Returns the x coordinate of a packed move
+	 * 
+	 * @param move move created by encodeMove
+	 */
+	public static int getMoveX(int move)
+	{
+		return move >>> 16;
+	}
+	
+	/**
+	 * Returns the y coordinate of a packed move
+	 * 
+	 * @param move move created by encodeMove
+	 */
+	public static int getMoveY(int move)
+	{
+		return (move >>> 1) & 0x7FFF;
+	}
+	
+	/**
+	 * Returns true if a packed move is on a left line
+	 * 
+	 * @param move move created by encodeMove
+	 */
+	public static boolean isMoveLeft(int move)
+	{
+		return (move & 1) != 0;
+	}
+	
+	/**
+	 * Makes a packed move on behalf of the given player
+	 * 
+	 * @param player player making the move
+	 * @param move move created by encodeMove
+	 * @return the result of the move
+	 * @see #move(int, int, int, boolean)
+	 */
+	public MoveResult move(int player, int move)
+	{
+		return move(player, getMoveX(move), getMoveY(move), isMoveLeft(move));
+	}
+	
+	/**
+	 * Writes all the legal moves into the given buffer
+	 * 
+	 * The moves are packed using encodeMove. No memory is allocated.
+	 * 
+	 * @param buffer buffer to write to (must hold at least getFreeLineCount() moves)
+	 * @return the number of moves written
+	 */
+	public int getMoves(int[] buffer)
+	{
+		int count = 0;
+		int lineCount = 2 * topLineCount;
+		
+		for(int i = 0; i < lines.length; i++)
+		{
+			//Free lines in this word (excluding bits after the last line)
+			long bits = ~lines[i];
+			if(i == lines.length - 1 && (lineCount & 63) != 0)
+			{
+				bits &= (1L << lineCount) - 1;
+			}
+			
+			for(; bits != 0; bits &= bits - 1)
+			{
+				int line = (i << 6) + Long.numberOfTrailingZeros(bits);
+				buffer[count++] = encodeMove(getLineX(line), getLineY(line), line >= topLineCount);
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Writes all the safe moves into the given buffer
+	 * 
+	 * A safe move does not give any square its third or fourth side, so
+	 * moves which complete a square are not safe. The moves are packed
+	 * using encodeMove. No memory is allocated.
+	 * 
+	 * @param buffer buffer to write to (must hold at least getSafeLineCount() moves)
+	 * @return the number of moves written
+	 */
+	public int getSafeMoves(int[] buffer)
+	{
+		int count = 0;
+		
+		for(int i = 0; i < safeLines.length; i++)
+		{
+			for(long bits = safeLines[i]; bits != 0; bits &= bits - 1)
+			{
+				int line = (i << 6) + Long.numberOfTrailingZeros(bits);
+				buffer[count++] = encodeMove(getLineX(line), getLineY(line), line >= topLineCount);
+			}
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Returns true if there are any safe moves left
+	 * 
+	 * Captures are not safe moves, so there may still be captures when this
+	 * returns false.
+	 * 
+	 * @see #getSafeMoves(int[])
+	 */
+	public boolean hasSafeMove()
+	{
+		return safeLineCount != 0;
+	}
+	
+	/**
+	 * Returns the number of safe moves
+	 * 
+	 * @see #getSafeMoves(int[])
+	 */
+	public int getSafeLineCount()
+	{
+		return safeLineCount;
+	}
+	
+	/**
+	 * Returns true if the given line is free and safe to play
+	 * 
+	 * @param line index of the line
+	 * @see #getSafeMoves(int[])
+	 */
+	public boolean isSafeLine(int line)
+	{
+		return (safeLines[line >>> 6] & (1L << line)) != 0;
+	}
+	
+	/**
+	 * Returns the number of squares which can be completed by the next move
+	 */
+	public int getCapturableCount()
+	{
+		return capturableCount;
+	}
+	
+	/**
+	 * Gets the number of sides which have been filled in around a square
+	 * 
+	 * @param x x coordinate (starts at 0)
+	 * @param y y coordinate (starts at 0)
+	 * @return the number of sides (0 to 4)
+	 */
+	public int getSideCount(int x, int y)
+	{
+		return sideCount[y * size + x];
+	}
+	
+	/**
+	 * Returns the number of lines which have not been set (the number of legal moves)
+	 */
+	public int getFreeLineCount()
+	{
+		return freeLines;
+	}
+	
+	/**
+	 * Returns the number of sides set around a square
+	 * 
+	 * @param square index of the square (y * size + x)
+	 */
+	int getSquareSideCount(int square)
+	{
+		return sideCount[square];
+	}
+	
+	/**
+	 * Returns the number of top lines (and the index of the first left line)
+	 */
+	int getTopLineCount()
+	{
+		return topLineCount;
+	}
+	
+	/**
+	 * Returns the number of lines on the board (the range of line indexes)
+	 */
+	public int getLineCount()
+	{
+		return 2 * topLineCount;
+	}
+	
+	/**
+	 * Returns the index of a line
+	 * 
+	 * Top lines come first (indexed by y * size + x), followed by the left
+	 * lines (indexed by size * (size + 1) + y * (size + 1) + x).
+	 * 
+	 * @param x x coordinate (starts at 0)
+	 * @param y y coordinate (starts at 0)
+	 * @param isLeft true for the left line of the given coordinate
+	 * @return the line index or -1 if there is no such line
+	 */
+	public int getLineIndex(int x, int y, boolean isLeft)
+	{
+		if(x < 0 || y < 0 || x > size || y > size)
+		{
+			return -1;
+		}
+		else if(isLeft)
+		{
+			return (y == size) ? -1 : topLineCount + y * (size + 1) + x;
+		}
+		else
+		{
+			return (x == size) ? -1 : y * size + x;
+		}
+	}
+	
+	/**
+	 * Returns the x coordinate of a line
+	 * 
+	 * @param line index of the line
+	 */
+	public int getLineX(int line)
+	{
+		return (line >= topLineCount) ? (line - topLineCount) % (size + 1) : line % size;
+	}
+	
+	/**
+	 * Returns the y coordinate of a line
+	 * 
+	 * @param line index of the line
+	 */
+	public int getLineY(int line)
+	{
+		return (line >= topLineCount) ? (line - topLineCount) / (size + 1) : line / size;
+	}
+	
+	/**
+	 * Returns true if a line is a left line (rather than a top line)
+	 * 
+	 * @param line index of the line
+	 */
+	public boolean isLeftLine(int line)
+	{
+		return line >= topLineCount;
+	}
+	
 	/**
 	 * Returns the game dimensions
 	 */
@@ -191,6 +1126,21 @@ public class GameState
 		return score[0] + score[1] == size * size;
 	}
 	
+	/**
+	 * Returns the winner of a complete game
+	 * 
+	 * As in GameController, a tied game is won by the player who went second.
+	 * 
+	 * @return the player who won (1 or 2)
+	 */
+	public int getWinner()
+	{
+		int first = player1First ? 1 : 2;
+		int second = 3 - first;
+		
+		return (score[first - 1] > score[second - 1]) ? first : second;
+	}
+	
 	/**
 	 * Gets a player's score (number of filled squares)
 	 * 
@@ -211,7 +1161,8 @@ public class GameState
 	 */
 	public int getSquareColour(int x, int y)
 	{
-		return squareValue[x][y];
+		int square = y * size + x;
+		return (int) (squareValue[square >>> 5] >>> ((square & 31) << 1)) & 3;
 	}
 	
 	/**
@@ -222,7 +1173,7 @@ public class GameState
 	 */
 	public boolean getTopLine(int x, int y)
 	{
-		return topLine[x][y];
+		return x < size && isLineSet(y * size + x);
 	}
 
 	/**
@@ -233,6 +1184,6 @@ public class GameState
 	 */
 	public boolean getLeftLine(int x, int y)
 	{
-		return leftLine[x][y];
+		return y < size && isLineSet(topLineCount + y * (size + 1) + x);
 	}
 }
@@ -0,0 +1,341 @@
+package uk.org.cowgill.james.squares;
+
+import java.util.Random;
+
+/**
+ * Checks that GameState makes moves in the same way as the original version
+ *
+ * The original GameState stored the lines and squares in 2D arrays. A copy
+ * of its move rules is kept here, and random games are played on both
+ * versions at once on several board sizes. Most moves are legal moves
+ * chosen at random, but some have random (often bogus) players and
+ * coordinates. After every move, the move results, turn, scores, every
+ * line and every square must be the same in both versions.
+ *
+ * Prints the number of differences for each size and exits with status 1
+ * if there are any.
+ *
+ * Usage: GameStateCheck [games] [seed]
+ *
+ * @author James
+ */
+public class GameStateCheck
+{
+	private static final int DEFAULT_GAMES = 200;
+	private static final int[] SIZES = { 1, 2, 3, 4, 5, 8, 16, 33 };
+
+	//Chance of a move with random inputs instead of a legal move (out of 100)
+	private static final int BOGUS_PERCENT = 25;
+
+	//Differences printed before the rest are only counted
+	private static final int MAX_PRINTED = 10;
+
+	private final Random random;
+	private long moves;
+	private int errors;
+
+	/**
+	 * Creates a new check
+	 *
+	 * @param seed seed of the random moves
+	 */
+	public GameStateCheck(long seed)
+	{
+		random = new Random(seed);
+	}
+
+	public static void main(String[] args)
+	{
+		int games = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_GAMES;
+		long seed = (args.length > 1) ? Long.parseLong(args[1]) : 1;
+		boolean ok = true;
+
+		for(int size : SIZES)
+		{
+			ok &= new GameStateCheck(seed + size).run(size, games);
+		}
+
+		if(!ok)
+		{
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Plays the games on one board size and prints the results
+	 *
+	 * @param size size of the board
+	 * @param games number of games to play
+	 * @return true if both versions always matched
+	 */
+	public boolean run(int size, int games)
+	{
+		int[] legalMoves = new int[new GameState(size, true).getLineCount()];
+
+		for(int game = 0; game < games; game++)
+		{
+			boolean player1Starts = random.nextBoolean();
+			GameState state = new GameState(size, player1Starts);
+			OriginalGameState original = new OriginalGameState(size, player1Starts);
+
+			while(!state.isComplete() && compare(state, original, size, game))
+			{
+				int player;
+				int x;
+				int y;
+				boolean isLeft;
+
+				if(random.nextInt(100) < BOGUS_PERCENT)
+				{
+					//Anything near the board (including the wrong player)
+					player = random.nextInt(4);
+					x = random.nextInt(size + 4) - 2;
+					y = random.nextInt(size + 4) - 2;
+					isLeft = random.nextBoolean();
+				}
+				else
+				{
+					int move = legalMoves[random.nextInt(state.getMoves(legalMoves))];
+
+					player = state.isPlayer1Turn() ? 1 : 2;
+					x = GameState.getMoveX(move);
+					y = GameState.getMoveY(move);
+					isLeft = GameState.isMoveLeft(move);
+				}
+
+				GameState.MoveResult expected = original.move(player, x, y, isLeft);
+				GameState.MoveResult result = state.move(player, x, y, isLeft);
+				moves++;
+
+				if(result != expected)
+				{
+					error(size, game, "move(" + player + ", " + x + ", " + y + ", " + isLeft + ") returned " +
+							result + " instead of " + expected);
+				}
+			}
+
+			if(original.isComplete() != state.isComplete())
+			{
+				error(size, game, "game completed in only one version");
+			}
+		}
+
+		System.out.printf("%3dx%-3d: %6d games, %9d moves, %d errors%n", size, size, games, moves, errors);
+		return errors == 0;
+	}
+
+	/**
+	 * Compares everything visible in both versions
+	 *
+	 * @return true if they are the same
+	 */
+	private boolean compare(GameState state, OriginalGameState original, int size, int game)
+	{
+		int errorsBefore = errors;
+
+		if(state.isPlayer1Turn() != original.isPlayer1Turn())
+		{
+			error(size, game, "different player to move");
+		}
+
+		for(int player = 1; player <= 2; player++)
+		{
+			if(state.getScore(player) != original.getScore(player))
+			{
+				error(size, game, "player " + player + " has score " + state.getScore(player) +
+						" instead of " + original.getScore(player));
+			}
+
+			if(state.canWinNow(player) != original.canWinNow(player))
+			{
+				error(size, game, "canWinNow(" + player + ") is different");
+			}
+		}
+
+		for(int x = 0; x <= size; x++)
+		{
+			for(int y = 0; y <= size; y++)
+			{
+				if(state.getTopLine(x, y) != original.getTopLine(x, y) ||
+					state.getLeftLine(x, y) != original.getLeftLine(x, y))
+				{
+					error(size, game, "different lines at " + x + ", " + y);
+				}
+
+				if(x < size && y < size && state.getSquareColour(x, y) != original.getSquareColour(x, y))
+				{
+					error(size, game, "square " + x + ", " + y + " has colour " + state.getSquareColour(x, y) +
+							" instead of " + original.getSquareColour(x, y));
+				}
+			}
+		}
+
+		return errors == errorsBefore;
+	}
+
+	/**
+	 * Records a difference
+	 */
+	private void error(int size, int game, String message)
+	{
+		if(++errors <= MAX_PRINTED)
+		{
+			System.out.println("size " + size + ", game " + game + ": " + message);
+		}
+	}
+
+	/**
+	 * The original version of GameState
+	 *
+	 * This is the GameState from before the lines were packed into a
+	 * bitset, with only the methods which are compared.
+	 */
+	private static class OriginalGameState
+	{
+		private boolean player1Turn;
+		private int size;
+		private int[] score = new int[2];
+
+		private byte[][] squareValue;
+		private boolean[][] topLine;
+		private boolean[][] leftLine;
+
+		public OriginalGameState(int size, boolean player1Starts)
+		{
+			//Initialize game
+			this.size = size;
+			player1Turn = player1Starts;
+			squareValue = new byte[size][size];
+			topLine = new boolean[size + 1][size + 1];
+			leftLine = new boolean[size + 1][size + 1];
+		}
+
+		public boolean isPlayer1Turn()
+		{
+			return player1Turn;
+		}
+
+		public GameState.MoveResult move(int player, int x, int y, boolean isLeft)
+		{
+			GameState.MoveResult res = GameState.MoveResult.Ok;
+
+			//Initial parameter validation
+			if((player != 1 && player != 2) || x < 0 || y < 0 || x > size || y > size)
+			{
+				return GameState.MoveResult.Illegal;
+			}
+
+			//Must be correct player's move
+			if((player1Turn && player == 2) || (!player1Turn && player == 1))
+			{
+				return GameState.MoveResult.Illegal;
+			}
+
+			//Do move
+			if(isLeft)
+			{
+				//Move already made (or invalid)?
+				if(y == size || leftLine[x][y])
+				{
+					return GameState.MoveResult.Illegal;
+				}
+
+				//Set line
+				leftLine[x][y] = true;
+
+				//Check square to the left
+				if(x != 0 && (leftLine[x - 1][y] && topLine[x - 1][y] && topLine[x - 1][y + 1]))
+				{
+					//Square to the left is coloured
+					squareValue[x - 1][y] = (byte) player;
+					score[player - 1]++;
+					res = GameState.MoveResult.OkAgain;
+				}
+
+				//Check square to the right
+				if(x != size && (leftLine[x + 1][y] && topLine[x][y] && topLine[x][y + 1]))
+				{
+					//Square to the right is coloured
+					squareValue[x][y] = (byte) player;
+					score[player - 1]++;
+					res = GameState.MoveResult.OkAgain;
+				}
+			}
+			else
+			{
+				//Move already made (or invalid)?
+				if(x == size || topLine[x][y])
+				{
+					return GameState.MoveResult.Illegal;
+				}
+
+				//Set line
+				topLine[x][y] = true;
+
+				//Check square to the top
+				if(y != 0 && (topLine[x][y - 1] && leftLine[x][y - 1] && leftLine[x + 1][y - 1]))
+				{
+					//Square to the top is coloured
+					squareValue[x][y - 1] = (byte) player;
+					score[player - 1]++;
+					res = GameState.MoveResult.OkAgain;
+				}
+
+				//Check square to the bottom
+				if(y != size && (topLine[x][y + 1] && leftLine[x][y] && leftLine[x + 1][y]))
+				{
+					//Square to the bottom is coloured
+					squareValue[x][y] = (byte) player;
+					score[player - 1]++;
+					res = GameState.MoveResult.OkAgain;
+				}
+			}
+
+			//If we're here, the move was good
+			if(res == GameState.MoveResult.Ok)
+			{
+				player1Turn = !player1Turn;
+			}
+
+			return res;
+		}
+
+		public boolean canWinNow(int player)
+		{
+			//Must be their turn and have enough squares
+			if(player1Turn == (player == 1))
+			{
+				return 2 * score[player - 1] > size * size;
+			}
+			else
+			{
+				return false;
+			}
+		}
+
+		public boolean isComplete()
+		{
+			return score[0] + score[1] == size * size;
+		}
+
+		public int getScore(int player)
+		{
+			return score[player - 1];
+		}
+
+		public int getSquareColour(int x, int y)
+		{
+			return squareValue[x][y];
+		}
+
+		public boolean getTopLine(int x, int y)
+		{
+			return topLine[x][y];
+		}
+
+		public boolean getLeftLine(int x, int y)
+		{
+			return leftLine[x][y];
+		}
+	}
+}
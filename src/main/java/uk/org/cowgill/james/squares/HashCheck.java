@@ -0,0 +1,190 @@
+package uk.org.cowgill.james.squares;
+
+import java.util.Random;
+
+/**
+ * Checks that the incremental Zobrist hash of GameState is always correct
+ *
+ * Random games are played on several board sizes. After every move, undo,
+ * illegal move, copy and reset, getHash() is compared with computeHash().
+ * A few moves are undone at random during each game and every move is
+ * undone at the end, and the hash after each undo must equal the hash from
+ * before the move.
+ *
+ * Prints the number of mismatches for each size and exits with status 1 if
+ * there are any.
+ *
+ * Usage: HashCheck [games] [seed]
+ *
+ * @author James
+ */
+public class HashCheck
+{
+	private static final int DEFAULT_GAMES = 500;
+	private static final int[] SIZES = { 1, 2, 3, 5, 8, 16, 33 };
+
+	//Chance of undoing some moves after each move (out of 100)
+	private static final int UNDO_PERCENT = 10;
+
+	//Most moves undone at once during a game
+	private static final int MAX_UNDO = 4;
+
+	//Mismatches printed before the rest are only counted
+	private static final int MAX_PRINTED = 10;
+
+	private final Random random;
+	private long checks;
+	private int errors;
+
+	/**
+	 * Creates a new check
+	 *
+	 * @param seed seed of the random moves
+	 */
+	public HashCheck(long seed)
+	{
+		random = new Random(seed);
+	}
+
+	public static void main(String[] args)
+	{
+		int games = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_GAMES;
+		long seed = (args.length > 1) ? Long.parseLong(args[1]) : 1;
+		boolean ok = true;
+
+		for(int size : SIZES)
+		{
+			ok &= new HashCheck(seed + size).run(size, games);
+		}
+
+		if(!ok)
+		{
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Plays the games on one board size and prints the results
+	 *
+	 * @param size size of the board
+	 * @param games number of games to play
+	 * @return true if the hash was always correct
+	 */
+	public boolean run(int size, int games)
+	{
+		GameState state = new GameState(size, true);
+		int[] moves = new int[state.getLineCount()];
+		int[] played = new int[state.getLineCount()];
+		int[] undoRecords = new int[state.getLineCount()];
+		long[] hashes = new long[state.getLineCount()];
+
+		for(int game = 0; game < games; game++)
+		{
+			state.reset(random.nextBoolean());
+			check(state, size, game, "reset");
+
+			long startHash = state.getHash();
+			int made = 0;
+
+			while(!state.isComplete())
+			{
+				int player = state.isPlayer1Turn() ? 1 : 2;
+				int count = state.getMoves(moves);
+				int move = moves[random.nextInt(count)];
+
+				//The other player cannot move and neither can a line be set twice
+				long before = state.getHash();
+				if(state.move(3 - player, move) != GameState.MoveResult.Illegal ||
+					(made > 0 && state.move(player, played[made - 1]) != GameState.MoveResult.Illegal))
+				{
+					error(size, game, "illegal move accepted");
+				}
+				else if(state.getHash() != before)
+				{
+					error(size, game, "illegal move changed the hash");
+				}
+
+				hashes[made] = before;
+				state.move(player, move);
+				played[made] = move;
+				undoRecords[made++] = state.getUndoRecord();
+				check(state, size, game, "move");
+
+				if(random.nextInt(100) < UNDO_PERCENT)
+				{
+					//Undo a few moves
+					int undo = 1 + random.nextInt(Math.min(made, MAX_UNDO));
+
+					for(int i = 0; i < undo; i++)
+					{
+						made = undo(state, size, game, undoRecords, hashes, made);
+					}
+				}
+			}
+
+			GameState copy = new GameState(state);
+			if(copy.getHash() != state.getHash())
+			{
+				error(size, game, "copy has a different hash");
+			}
+
+			check(copy, size, game, "copy");
+
+			//Undo the whole game
+			while(made > 0)
+			{
+				made = undo(state, size, game, undoRecords, hashes, made);
+			}
+
+			if(state.getHash() != startHash)
+			{
+				error(size, game, "undoing every move did not restore the starting hash");
+			}
+		}
+
+		System.out.printf("%3dx%-3d: %6d games, %9d checks, %d errors%n", size, size, games, checks, errors);
+		return errors == 0;
+	}
+
+	/**
+	 * Undoes the last move and checks the hash
+	 *
+	 * @return the number of moves left
+	 */
+	private int undo(GameState state, int size, int game, int[] undoRecords, long[] hashes, int made)
+	{
+		state.undo(undoRecords[--made]);
+		check(state, size, game, "undo");
+
+		if(state.getHash() != hashes[made])
+		{
+			error(size, game, "undo did not restore the hash");
+		}
+
+		return made;
+	}
+
+	/**
+	 * Compares the incremental hash with one calculated from scratch
+	 */
+	private void check(GameState state, int size, int game, String after)
+	{
+		checks++;
+
+		if(state.getHash() != state.computeHash())
+		{
+			error(size, game, "hash is wrong after " + after);
+		}
+	}
+
+	/**
+	 * Records a mismatch
+	 */
+	private void error(int size, int game, String message)
+	{
+		if(++errors <= MAX_PRINTED)
+		{
+			System.out.println("size " + size + ", game " + game + ": " + message);
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package uk.org.cowgill.james.squares;
+
+import java.util.Arrays;
+
+/**
+ * A fixed size histogram of latencies
+ *
+ * Values are in microseconds. Values below 32 have their own buckets and
+ * each larger power of 2 is split into 16 buckets, so percentiles are
+ * accurate to about 6%. The minimum, maximum and mean are exact. Values
+ * over MAX_VALUE are recorded as MAX_VALUE.
+ *
+ * This class is not thread safe.
+ *
+ * @author James
+ */
+public class LatencyHistogram
+{
+	/**
+	 * The largest value which can be recorded (a little over an hour)
+	 */
+	public static final long MAX_VALUE = (1L << 32) - 1;
+
+	//Number of bits and buckets used within each power of 2
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final long[] counts = new long[bucketIndex(MAX_VALUE) + 1];
+	private long count;
+	private long total;
+	private long min = Long.MAX_VALUE;
+	private long max;
+
+	/**
+	 * Records a value
+	 *
+	 * @param value value to record (negative values are recorded as 0)
+	 */
+	public void record(long value)
+	{
+		value = Math.max(0, Math.min(value, MAX_VALUE));
+
+		counts[bucketIndex(value)]++;
+		count++;
+		total += value;
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+	}
+
+	/**
+	 * Removes all the values
+	 */
+	public void clear()
+	{
+		Arrays.fill(counts, 0);
+		count = 0;
+		total = 0;
+		min = Long.MAX_VALUE;
+		max = 0;
+	}
+
+	/**
+	 * Returns the number of values recorded
+	 */
+	public long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Returns the smallest value (or 0 if there are no values)
+	 */
+	public long getMin()
+	{
+		return (count == 0) ? 0 : min;
+	}
+
+	/**
+	 * Returns the largest value (or 0 if there are no values)
+	 */
+	public long getMax()
+	{
+		return max;
+	}
+
+	/**
+	 * Returns the mean of the values (or 0 if there are no values)
+	 */
+	public double getMean()
+	{
+		return (count == 0) ? 0 : (double) total / count;
+	}
+
+	/**
+	 * Returns a percentile of the values
+	 *
+	 * The result is the largest value in the bucket containing the
+	 * percentile (but never more than the maximum value).
+	 *
+	 * @param percentile percentile to return (between 0 and 100)
+	 * @return the value or 0 if there are no values
+	 */
+	public long getPercentile(double percentile)
+	{
+		if(percentile < 0 || percentile > 100)
+		{
+			throw new IllegalArgumentException("percentile must be between 0 and 100");
+		}
+
+		if(count == 0)
+		{
+			return 0;
+		}
+
+		//Find the bucket containing the value with this rank
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+
+		for(int i = 0; i < counts.length; i++)
+		{
+			seen += counts[i];
+			if(seen >= rank)
+			{
+				return Math.max(min, Math.min(bucketStart(i + 1) - 1, max));
+			}
+		}
+
+		return max;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("min %d us, mean %.0f us, p50 %d us, p99 %d us (%d samples)",
+				getMin(), getMean(), getPercentile(50), getPercentile(99), count);
+	}
+
+	/**
+	 * Returns the bucket containing a value
+	 */
+	private static int bucketIndex(long value)
+	{
+		//Values are shifted so that each power of 2 has SUB_BUCKETS buckets
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+		return SUB_BUCKETS * shift + (int) (value >>> shift);
+	}
+
+	/**
+	 * Returns the smallest value in a bucket
+	 */
+	private static long bucketStart(int index)
+	{
+		if(index < 2 * SUB_BUCKETS)
+		{
+			return index;
+		}
+
+		int shift = index / SUB_BUCKETS - 1;
+		return (long) (index - SUB_BUCKETS * shift) << shift;
+	}
+}
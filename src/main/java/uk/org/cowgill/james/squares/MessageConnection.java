@@ -2,23 +2,107 @@ package uk.org.cowgill.james.squares;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.NotYetConnectedException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Provides a wrapper around a SocketChannel which allows sending and
  * receiving messages using another Thread.
  *
+ * By default each connection has its own selector and reader thread. A
+ * connection can instead be run by a MessageReactor, which uses a few
+ * threads for many connections, or read with blocking I/O on a thread from
+ * a ThreadFactory (usually VIRTUAL_THREADS). The events have the same
+ * contracts in every mode, but they are raised on the thread which runs
+ * the connection.
+ *
+ * Messages are sent with a single gathering write. In the non-blocking
+ * modes, anything the socket cannot take immediately is queued and sent
+ * when the socket becomes writable. If the queue grows past a limit (the
+ * other end is not reading), the connection is closed.
+ *
+ * Incoming messages are passed to eventRead where they are in the read
+ * buffer, through the same read-only view each time. An incomplete message
+ * is only moved to the start of the buffer when the buffer is nearly full,
+ * so reading small messages does not allocate or copy anything.
+ *
  * @author James
  */
 public abstract class MessageConnection implements Runnable
 {
+	/**
+	 * Creates a virtual thread for each connection
+	 */
+	public static final ThreadFactory VIRTUAL_THREADS =
+			Thread.ofVirtual().name("MessageConnection Virtual Thread ", 0).factory();
+	
+	/**
+	 * The default maximum number of bytes waiting to be sent
+	 */
+	public static final int DEFAULT_MAX_QUEUED_BYTES = 64 * 1024;
+	
+	/**
+	 * The longest message which can be sent or received using varint framing
+	 */
+	public static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+	
+	/**
+	 * Size of the read buffer when no large messages are being read
+	 */
+	private static final int INITIAL_BUFFER_SIZE = 512;
+	
 	private Selector selector;
 	private SocketChannel socket;
 	private Thread readerThread;
+	private final MessageReactor reactor;
+	
+	/**
+	 * Set by close() when using blocking I/O (the reader ignores the resulting errors)
+	 */
+	private volatile boolean closeRequested;
+	
+	/**
+	 * Index of the reactor event loop running this connection
+	 */
+	int reactorLoop;
+	
+	//Storage buffer for incoming messages (grows while a large message is read)
+	private byte[] rawBuffer = new byte[INITIAL_BUFFER_SIZE];
+	private ByteBuffer buffer = ByteBuffer.wrap(rawBuffer);
+	
+	/**
+	 * Read-only view of the buffer given to eventRead (reused for every message)
+	 */
+	private ByteBuffer readView = buffer.asReadOnlyBuffer();
+	
+	/**
+	 * Start of the data in the buffer which has not been processed
+	 */
+	private int readPos;
+	
+	/**
+	 * True if the other end can read messages with lengths over 127 bytes
+	 */
+	private volatile boolean varintFraming;
+	
+	//Outgoing messages waiting for the socket to become writable (also the lock for sending)
+	private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+	private ByteBuffer[] writeArray = new ByteBuffer[2];
+	private final ByteBuffer lengthBuffer = ByteBuffer.allocate(5);
+	private volatile int queuedBytes;
+	private volatile int maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+	
+	/**
+	 * The key of the channel in the selector reading it (null in blocking mode or before registration)
+	 */
+	private SelectionKey selectionKey;
 
 	/**
 	 * Creates a new message connection using the given socket and callback interface
@@ -26,9 +110,41 @@ public abstract class MessageConnection implements Runnable
 	 * @param socket the socket this connection will control
 	 */
 	public MessageConnection(SocketChannel socket) throws IOException
+	{
+		this(socket, null, null);
+	}
+	
+	/**
+	 * Creates a new message connection which is run by a reactor
+	 *
+	 * @param socket the socket this connection will control
+	 * @param reactor the reactor to run this connection on (or null to use a new thread)
+	 */
+	public MessageConnection(SocketChannel socket, MessageReactor reactor) throws IOException
+	{
+		this(socket, reactor, null);
+	}
+	
+	/**
+	 * Creates a new message connection which reads using blocking I/O
+	 *
+	 * The reader thread is created by the given factory. With virtual threads
+	 * (VIRTUAL_THREADS), a blocked read does not hold a platform thread.
+	 *
+	 * @param socket the socket this connection will control
+	 * @param threadFactory factory used to create the reader thread
+	 */
+	public MessageConnection(SocketChannel socket, ThreadFactory threadFactory) throws IOException
+	{
+		this(socket, null, threadFactory);
+	}
+	
+	private MessageConnection(SocketChannel socket, MessageReactor reactor,
+			ThreadFactory threadFactory) throws IOException
 	{
 		//Store socket
 		this.socket = socket;
+		this.reactor = reactor;
 		
 		//Must be open
 		if(!this.socket.isConnected())
@@ -39,38 +155,175 @@ public abstract class MessageConnection implements Runnable
 		//Disable nagle
 		this.socket.socket().setTcpNoDelay(true);
 		
-		//Disable blocking (using a selector)
-		this.socket.configureBlocking(false);
+		//Disable blocking unless a thread factory was given
+		this.socket.configureBlocking(threadFactory != null);
 		
-		//Open selector and register channel
-		this.selector = Selector.open();
-		this.socket.register(this.selector, SelectionKey.OP_READ, null);
-		
-		//Start reader thread
-		readerThread = new Thread(this, "MessageConnection Thread");
-		readerThread.setDaemon(true);
-		readerThread.start();
+		if(threadFactory != null)
+		{
+			//Start reader thread (without a selector)
+			readerThread = threadFactory.newThread(this);
+			readerThread.start();
+		}
+		else if(reactor != null)
+		{
+			//Reactor registers the channel with its selector
+			reactor.register(this);
+		}
+		else
+		{
+			//Open selector and register channel
+			this.selector = Selector.open();
+			setSelectionKey(this.socket.register(this.selector, SelectionKey.OP_READ, null));
+			
+			//Start reader thread
+			readerThread = new Thread(this, "MessageConnection Thread");
+			readerThread.setDaemon(true);
+			readerThread.start();
+		}
 	}
 	
 	/**
 	 * Sends the message in the given buffer over the connection
 	 *
-	 * @param buffer the content of the message to send (up to 255 bytes)
+	 * This can be called from any thread. If the message cannot be sent
+	 * immediately, a copy is queued. If the queue is over the limit, the
+	 * connection is closed (without raising events) and an IOException is
+	 * thrown.
+	 *
+	 * @param buffer the content of the message to send (up to getMaxMessageSize() bytes)
 	 */
 	public void sendMsg(ByteBuffer buffer) throws IOException
 	{
-		//Check max length
-		if(buffer.remaining() > Byte.MAX_VALUE)
+		synchronized(writeQueue)
 		{
-			throw new IOException("MessageConnection can only send messages up to 255 bytes long");
+			//Check max length
+			int maxLength = getMaxMessageSize();
+			if(buffer.remaining() > maxLength)
+			{
+				throw new IOException("MessageConnection can only send messages up to " +
+						maxLength + " bytes long");
+			}
+			
+			//Length prefix (varint)
+			// 7 bits per byte, low bits first, top bit set on every byte except the last
+			lengthBuffer.clear();
+			
+			int prefix = buffer.remaining();
+			while(prefix > 0x7F)
+			{
+				lengthBuffer.put((byte) (prefix | 0x80));
+				prefix >>>= 7;
+			}
+			
+			lengthBuffer.put((byte) prefix);
+			lengthBuffer.flip();
+			
+			if(writeQueue.isEmpty())
+			{
+				//Send prefix and data in one write
+				writeArray[0] = lengthBuffer;
+				writeArray[1] = buffer;
+				
+				try
+				{
+					do
+					{
+						socket.write(writeArray, 0, 2);
+					}
+					while(socket.isBlocking() && (lengthBuffer.hasRemaining() || buffer.hasRemaining()));
+				}
+				finally
+				{
+					writeArray[1] = null;
+				}
+				
+				if(!lengthBuffer.hasRemaining() && !buffer.hasRemaining())
+				{
+					return;
+				}
+			}
+			
+			//Queue whatever was not sent
+			int length = lengthBuffer.remaining() + buffer.remaining();
+			if(queuedBytes + length > maxQueuedBytes)
+			{
+				close();
+				throw new IOException("Connection closed because the other end is not reading messages");
+			}
+			
+			ByteBuffer copy = ByteBuffer.allocate(length);
+			copy.put(lengthBuffer);
+			copy.put(buffer);
+			copy.flip();
+			
+			writeQueue.add(copy);
+			queuedBytes += length;
+			
+			//Wait until the socket is writable
+			if(selectionKey != null)
+			{
+				try
+				{
+					selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					selectionKey.selector().wakeup();
+				}
+				catch(CancelledKeyException e)
+				{
+					//Connection is being closed
+					throw new ClosedChannelException();
+				}
+			}
 		}
-		
-		//Send length prefix
-		ByteBuffer lenBuf = ByteBuffer.wrap(new byte[] { (byte) buffer.remaining() });
-		socket.write(lenBuf);
-		
-		//Send  data
-		socket.write(buffer);
+	}
+	
+	/**
+	 * Allows messages longer than 127 bytes to be sent
+	 *
+	 * Message lengths are sent as varints. Lengths up to 127 take a single
+	 * byte, which is the same as the original framing, so a connection can
+	 * only send messages that long until the other end is known to read
+	 * varint framing (MessageConnection does not negotiate it). After this is
+	 * called, messages can be up to MAX_MESSAGE_SIZE bytes.
+	 *
+	 * Incoming messages are always read with varint framing.
+	 */
+	public void setVarintFraming()
+	{
+		varintFraming = true;
+	}
+	
+	/**
+	 * Returns true if messages longer than 127 bytes can be sent
+	 */
+	public boolean isVarintFraming()
+	{
+		return varintFraming;
+	}
+	
+	/**
+	 * Returns the longest message which can be sent with the current framing
+	 */
+	public int getMaxMessageSize()
+	{
+		return varintFraming ? MAX_MESSAGE_SIZE : Byte.MAX_VALUE;
+	}
+	
+	/**
+	 * Sets the maximum number of bytes which can be waiting to be sent
+	 *
+	 * @param maxQueuedBytes maximum queue size in bytes
+	 */
+	public void setMaxQueuedBytes(int maxQueuedBytes)
+	{
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+	
+	/**
+	 * Returns the number of bytes waiting to be sent
+	 */
+	public int getQueuedBytes()
+	{
+		return queuedBytes;
 	}
 	
 	/**
@@ -88,8 +341,87 @@ public abstract class MessageConnection implements Runnable
 	 */
 	public void close() throws IOException
 	{
-		//Close the selector which will initiate the close from the thread
-		this.selector.close();
+		if(reactor != null)
+		{
+			//The reactor closes the channel from its thread
+			reactor.close(this);
+		}
+		else if(selector == null)
+		{
+			//Closing the channel wakes up the blocked reader thread
+			closeRequested = true;
+			closeSocket();
+		}
+		else
+		{
+			//Close the selector which will initiate the close from the thread
+			this.selector.close();
+		}
+	}
+	
+	/**
+	 * Returns the socket associated with this connection
+	 */
+	SocketChannel getSocket()
+	{
+		return socket;
+	}
+	
+	/**
+	 * Sets the key of the channel in the selector which reads it
+	 *
+	 * If messages were queued before the channel was registered, the key
+	 * waits for the socket to become writable.
+	 */
+	void setSelectionKey(SelectionKey key)
+	{
+		synchronized(writeQueue)
+		{
+			selectionKey = key;
+			
+			if(!writeQueue.isEmpty())
+			{
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+	}
+	
+	/**
+	 * Sends as much of the queue as possible (called when the socket is writable)
+	 *
+	 * This must only be called by the thread running the connection.
+	 */
+	void processWrite() throws IOException
+	{
+		synchronized(writeQueue)
+		{
+			//Send the whole queue in one write
+			int count = writeQueue.size();
+			if(writeArray.length < count)
+			{
+				writeArray = new ByteBuffer[Math.max(count, 2 * writeArray.length)];
+			}
+			
+			writeQueue.toArray(writeArray);
+			queuedBytes -= (int) socket.write(writeArray, 0, count);
+			
+			//Remove sent messages
+			while(!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining())
+			{
+				writeQueue.poll();
+			}
+			
+			for(int i = 0; i < count; i++)
+			{
+				writeArray[i] = null;
+			}
+			
+			//Stop waiting for the socket when everything has been sent
+			if(writeQueue.isEmpty())
+			{
+				selectionKey.interestOps(SelectionKey.OP_READ);
+			}
+		}
 	}
 	
 	/**
@@ -108,6 +440,9 @@ public abstract class MessageConnection implements Runnable
 	 *
 	 * The message is stored in the buffer. The position and limit are set accordingly.
 	 *
+	 * The buffer is reused for the next message, so it (and its contents)
+	 * must not be kept after this returns.
+	 *
 	 * Any exceptions thrown are forwarded to eventError.
 	 *
 	 * @param buffer buffer containing data which was read
@@ -121,52 +456,44 @@ public abstract class MessageConnection implements Runnable
 	 */
 	protected abstract void eventClosed() throws Exception;
 	
+	/**
+	 * Runs the read loop of a connection with its own thread
+	 *
+	 * This is started by the constructor and must not be called directly.
+	 */
 	@Override
 	public void run()
 	{
-		//Create storage buffer
-		byte[] rawBuffer = new byte[512];
-		ByteBuffer buffer = ByteBuffer.wrap(rawBuffer);
-		
-		//Start selection loop
 		try
 		{
-			for(;;)
+			if(this.selector == null)
 			{
-				if(this.selector.select() != 0)
+				//Blocking reads
+				while(processRead())
 				{
-					//Clear selection kets
-					this.selector.selectedKeys().clear();
-					
-					//Process read request
-					int bytes = this.socket.read(buffer);
-					if(bytes == -1)
-					{
-						//EOF reached and the current message has not been processed
-						// Raise close event and exit
-						eventClosed();
-						break;
-					}
-					else if(bytes != 0)
+				}
+			}
+			else
+			{
+				//Start selection loop
+				for(;;)
+				{
+					if(this.selector.select() != 0)
 					{
-						//Ignore request if bytes = 0 (nothing todo)
+						//Clear selection kets
+						this.selector.selectedKeys().clear();
 						
-						//Process messages
-						int pos = 0;
-						while(pos + rawBuffer[pos] < buffer.position())
+						//Send queued messages
+						if(selectionKey.isWritable())
 						{
-							//There is a message at the start of the buffer, so send it on
-							eventRead(ByteBuffer.wrap(rawBuffer, pos + 1, rawBuffer[pos]).asReadOnlyBuffer());
-							
-							//Advance position
-							pos += rawBuffer[pos] + 1;
+							processWrite();
 						}
 						
-						//Copy the rest of the array back to the beginning
-						System.arraycopy(rawBuffer, pos, rawBuffer, 0, buffer.position() - pos);
-						
-						//Update buffer position
-						buffer.position(buffer.position() - pos);
+						//Process read request
+						if(selectionKey.isReadable() && !processRead())
+						{
+							break;
+						}
 					}
 				}
 			}
@@ -177,33 +504,179 @@ public abstract class MessageConnection implements Runnable
 		}
 		catch(Exception e)
 		{
-			//Notify of the exception
-			eventError(e);
+			//Notify of the exception (unless it was caused by close)
+			if(!closeRequested)
+			{
+				eventError(e);
+			}
 		}
 		finally
 		{
-			//Shutdown then close the channel
 			try
 			{
-				this.selector.close();
-				this.socket.socket().setSoLinger(true, 10);
-				this.socket.socket().shutdownInput();
-				this.socket.socket().shutdownOutput();
+				if(this.selector != null)
+				{
+					this.selector.close();
+				}
 			}
 			catch(IOException e)
 			{
 				//Ignore this
 			}
-			finally
+			
+			closeSocket();
+		}
+	}
+	
+	/**
+	 * Reads any available data from the socket and raises eventRead for each complete message
+	 *
+	 * This must only be called by the thread running the connection.
+	 *
+	 * @return false if the other end closed the connection (eventClosed has been raised)
+	 */
+	boolean processRead() throws Exception
+	{
+		int bytes = this.socket.read(buffer);
+		if(bytes == -1 && closeRequested)
+		{
+			//Input was shut down by close
+			return false;
+		}
+		else if(bytes == -1)
+		{
+			//EOF reached and the current message has not been processed
+			// Raise close event and exit
+			eventClosed();
+			return false;
+		}
+		else if(bytes != 0)
+		{
+			//Ignore request if bytes = 0 (nothing todo)
+			
+			//Process every complete message in the buffer
+			int pos = readPos;
+			int end = buffer.position();
+			int required = 0;
+			
+			messages:
+			while(pos < end)
 			{
-				try
+				//Decode the length
+				int start = pos;
+				int length = 0;
+				
+				for(int shift = 0; ; shift += 7)
 				{
-					this.socket.close();
+					if(start == end)
+					{
+						//Length is incomplete
+						break messages;
+					}
+					
+					byte b = rawBuffer[start++];
+					length |= (b & 0x7F) << shift;
+					
+					if(b >= 0)
+					{
+						break;
+					}
+					else if(shift >= 21)
+					{
+						throw new IOException("Message length is too long");
+					}
 				}
-				catch(IOException e)
+				
+				if(length > MAX_MESSAGE_SIZE)
 				{
-					//Ignore errors
+					throw new IOException("Message of " + length + " bytes is too long");
 				}
+				
+				if(end - start < length)
+				{
+					//Message is incomplete
+					required = start - pos + length;
+					break;
+				}
+				
+				//Send on the message
+				readView.limit(start + length);
+				readView.position(start);
+				eventRead(readView);
+				pos = start + length;
+			}
+			
+			int remaining = end - pos;
+			
+			if(remaining == 0)
+			{
+				//Everything has been processed, so start again at the beginning
+				if(rawBuffer.length > INITIAL_BUFFER_SIZE && end <= INITIAL_BUFFER_SIZE)
+				{
+					//Large messages have stopped, so go back to the small buffer
+					setReadBuffer(new byte[INITIAL_BUFFER_SIZE]);
+				}
+				
+				pos = 0;
+			}
+			else if(required > rawBuffer.length)
+			{
+				//Grow the buffer to fit the whole message
+				byte[] newBuffer = new byte[Integer.highestOneBit(required - 1) << 1];
+				System.arraycopy(rawBuffer, pos, newBuffer, 0, remaining);
+				setReadBuffer(newBuffer);
+				pos = 0;
+			}
+			else if(pos + required > rawBuffer.length || rawBuffer.length - end < rawBuffer.length / 8)
+			{
+				//Buffer is nearly full, so move the incomplete message to the beginning
+				System.arraycopy(rawBuffer, pos, rawBuffer, 0, remaining);
+				pos = 0;
+			}
+			
+			//Next read goes after the incomplete message
+			readPos = pos;
+			buffer.clear();
+			buffer.position(pos + remaining);
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Replaces the read buffer
+	 */
+	private void setReadBuffer(byte[] newBuffer)
+	{
+		rawBuffer = newBuffer;
+		buffer = ByteBuffer.wrap(newBuffer);
+		readView = buffer.asReadOnlyBuffer();
+	}
+	
+	/**
+	 * Shuts down then closes the channel
+	 */
+	void closeSocket()
+	{
+		try
+		{
+			this.socket.socket().setSoLinger(true, 10);
+			this.socket.socket().shutdownInput();
+			this.socket.socket().shutdownOutput();
+		}
+		catch(IOException e)
+		{
+			//Ignore this
+		}
+		finally
+		{
+			try
+			{
+				this.socket.close();
+			}
+			catch(IOException e)
+			{
+				//Ignore errors
 			}
 		}
 	}
@@ -0,0 +1,260 @@
+package uk.org.cowgill.james.squares;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many MessageConnections using a few event loop threads
+ *
+ * Each event loop thread owns a selector and reads from all the
+ * connections registered with it. Connections are given to the event loops
+ * in turn. The events of a connection are always raised on the same thread,
+ * so an event which blocks delays every other connection on that thread.
+ *
+ * @author James
+ */
+public class MessageReactor
+{
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	private final AtomicInteger connectionCount = new AtomicInteger();
+	private volatile boolean shutdown;
+
+	/**
+	 * Creates a new reactor with one event loop thread
+	 */
+	public MessageReactor() throws IOException
+	{
+		this(1);
+	}
+
+	/**
+	 * Creates a new reactor
+	 *
+	 * @param threads number of event loop threads
+	 */
+	public MessageReactor(int threads) throws IOException
+	{
+		if(threads <= 0)
+		{
+			throw new IllegalArgumentException("threads must be positive");
+		}
+
+		loops = new EventLoop[threads];
+
+		for(int i = 0; i < threads; i++)
+		{
+			loops[i] = new EventLoop();
+
+			Thread thread = new Thread(loops[i], "MessageReactor Thread " + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Returns the number of event loop threads
+	 */
+	public int getThreads()
+	{
+		return loops.length;
+	}
+
+	/**
+	 * Returns the number of open connections run by this reactor
+	 */
+	public int getConnectionCount()
+	{
+		return connectionCount.get();
+	}
+
+	/**
+	 * Stops the event loops and closes all the connections
+	 *
+	 * No events are raised for the closed connections.
+	 */
+	public void shutdown()
+	{
+		shutdown = true;
+
+		for(EventLoop loop : loops)
+		{
+			loop.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Adds a connection to one of the event loops
+	 *
+	 * @param connection connection to add
+	 */
+	void register(MessageConnection connection) throws IOException
+	{
+		if(shutdown)
+		{
+			throw new IOException("MessageReactor has been shut down");
+		}
+
+		int index = (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+		EventLoop loop = loops[index];
+		connection.reactorLoop = index;
+
+		//Channels are registered by the event loop thread (register blocks while it is selecting)
+		loop.pending.add(connection);
+		loop.selector.wakeup();
+	}
+
+	/**
+	 * Closes a connection on its event loop thread (without raising any events)
+	 *
+	 * @param connection connection to close
+	 */
+	void close(MessageConnection connection)
+	{
+		EventLoop loop = loops[connection.reactorLoop];
+
+		loop.closing.add(connection);
+		loop.selector.wakeup();
+	}
+
+	/**
+	 * A selector and the thread which reads from it
+	 */
+	private class EventLoop implements Runnable
+	{
+		private final Selector selector;
+		private final Queue<MessageConnection> pending = new ConcurrentLinkedQueue<MessageConnection>();
+		private final Queue<MessageConnection> closing = new ConcurrentLinkedQueue<MessageConnection>();
+
+		public EventLoop() throws IOException
+		{
+			selector = Selector.open();
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while(!shutdown)
+				{
+					selector.select();
+
+					//Register new connections
+					MessageConnection connection;
+					while((connection = pending.poll()) != null)
+					{
+						try
+						{
+							connection.setSelectionKey(connection.getSocket().register(selector,
+									SelectionKey.OP_READ, connection));
+							connectionCount.incrementAndGet();
+						}
+						catch(ClosedChannelException e)
+						{
+							//Closed before it was registered
+							connection.eventError(e);
+							connection.closeSocket();
+						}
+					}
+
+					//Close connections closed by their owners
+					while((connection = closing.poll()) != null)
+					{
+						SelectionKey key = connection.getSocket().keyFor(selector);
+						if(key != null && key.isValid())
+						{
+							finish(connection, key);
+						}
+					}
+
+					//Write to and read from the ready connections
+					for(SelectionKey key : selector.selectedKeys())
+					{
+						if(!key.isValid())
+						{
+							continue;
+						}
+
+						connection = (MessageConnection) key.attachment();
+
+						try
+						{
+							if(key.isWritable())
+							{
+								connection.processWrite();
+							}
+
+							if(key.isReadable() && !connection.processRead())
+							{
+								finish(connection, key);
+							}
+						}
+						catch(Exception e)
+						{
+							//Notify of the exception
+							connection.eventError(e);
+							finish(connection, key);
+						}
+					}
+
+					selector.selectedKeys().clear();
+				}
+			}
+			catch(ClosedSelectorException e)
+			{
+				//Ignore and fallthrough
+			}
+			catch(IOException e)
+			{
+				//Selector failed so every connection must be closed
+			}
+			finally
+			{
+				//Close any remaining connections
+				try
+				{
+					MessageConnection connection;
+					while((connection = pending.poll()) != null)
+					{
+						connection.closeSocket();
+					}
+
+					for(SelectionKey key : selector.keys())
+					{
+						if(key.isValid())
+						{
+							finish((MessageConnection) key.attachment(), key);
+						}
+					}
+
+					selector.close();
+				}
+				catch(ClosedSelectorException e)
+				{
+					//Ignore
+				}
+				catch(IOException e)
+				{
+					//Ignore
+				}
+			}
+		}
+
+		/**
+		 * Removes a connection from the selector and closes it
+		 */
+		private void finish(MessageConnection connection, SelectionKey key)
+		{
+			key.cancel();
+			connection.closeSocket();
+			connectionCount.decrementAndGet();
+		}
+	}
+}
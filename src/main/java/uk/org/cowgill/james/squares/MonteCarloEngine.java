@@ -0,0 +1,629 @@
+package uk.org.cowgill.james.squares;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A computer player which chooses moves using Monte Carlo tree search
+ *
+ * Children are selected using UCT. Each playout takes any square it can,
+ * otherwise plays a random safe move, otherwise any random move. Results
+ * are counted as wins and losses for the player who made each move (as in
+ * GameController, a tied game is won by the player who went second).
+ *
+ * Tree nodes are stored in a set of preallocated arrays (the arena) rather
+ * than as objects. When the arena is full the tree stops growing, but
+ * playouts continue from the existing leaves.
+ *
+ * With more than one thread, each thread plays out from its own copy of
+ * the position. Tree operations are done while holding a single lock, and
+ * each node on the path being played out counts as a lost visit until the
+ * result is known (virtual loss), so other threads explore other branches.
+ *
+ * This class is not thread safe.
+ *
+ * @author James
+ */
+public class MonteCarloEngine
+{
+	/**
+	 * The default amount of memory used by the tree
+	 */
+	public static final long DEFAULT_MEMORY = 64L << 20;
+
+	/**
+	 * Number of bytes used by each node
+	 */
+	public static final int NODE_SIZE = 21;
+
+	//Visits to a leaf before its children are added
+	private static final int EXPAND_VISITS = 4;
+
+	//UCT exploration constant
+	private static final double EXPLORATION = 0.7;
+
+	//Random lines tried before generating all the moves in a playout
+	private static final int RANDOM_PROBES = 8;
+
+	//Tree arena (each node only has a move if it is not the root)
+	private final int[] nodeMove;
+	private final byte[] nodePlayer;
+	private final int[] firstChild;
+	private final int[] childCount;
+	private final int[] visits;
+	private final int[] wins;
+	private int nodeCount;
+
+	private OpeningBook openingBook;
+
+	//Threads
+	private final Object treeLock = new Object();
+	private Worker[] helpers = new Worker[0];
+	private ExecutorService helperPool;
+	private volatile boolean stopRequested;
+
+	//State of the current search
+	private long playoutLimit;
+	private long deadline;
+	private long playouts;
+
+	//Results of the last search
+	private long elapsedMillis;
+	private int bestVisits;
+	private int bestWins;
+
+	/**
+	 * Creates a new engine using the default amount of memory
+	 */
+	public MonteCarloEngine()
+	{
+		this(DEFAULT_MEMORY);
+	}
+
+	/**
+	 * Creates a new engine
+	 *
+	 * @param memoryBytes maximum amount of memory used by the tree
+	 */
+	public MonteCarloEngine(long memoryBytes)
+	{
+		int nodes = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, memoryBytes / NODE_SIZE));
+
+		nodeMove = new int[nodes];
+		nodePlayer = new byte[nodes];
+		firstChild = new int[nodes];
+		childCount = new int[nodes];
+		visits = new int[nodes];
+		wins = new int[nodes];
+	}
+
+	/**
+	 * Sets the number of threads used to search
+	 *
+	 * @param threads number of threads (including the calling thread)
+	 */
+	public void setThreads(int threads)
+	{
+		if(threads < 1)
+		{
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+
+		//Stop old helper threads
+		if(helperPool != null)
+		{
+			helperPool.shutdown();
+			helperPool = null;
+		}
+
+		helpers = new Worker[threads - 1];
+
+		if(threads > 1)
+		{
+			helperPool = Executors.newFixedThreadPool(helpers.length, new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "MonteCarloEngine Helper");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns the number of threads used to search
+	 */
+	public int getThreads()
+	{
+		return helpers.length + 1;
+	}
+
+	/**
+	 * Sets the opening book checked before searching (or null for none)
+	 *
+	 * @param openingBook opening book to use
+	 */
+	public void setOpeningBook(OpeningBook openingBook)
+	{
+		this.openingBook = openingBook;
+	}
+
+	/**
+	 * Returns the maximum number of nodes in the tree
+	 */
+	public int getCapacity()
+	{
+		return nodeMove.length;
+	}
+
+	/**
+	 * Finds the best move for the player whose turn it is
+	 *
+	 * The search stops when either limit is reached. At least one playout
+	 * is always made. The move which was visited most is returned.
+	 *
+	 * @param state state to search (it is not modified)
+	 * @param timeLimitMillis maximum time to search for (0 for no limit)
+	 * @param playoutLimit maximum number of playouts (0 for no limit)
+	 * @return the best move (packed using GameState.encodeMove) or -1 if there are no moves
+	 */
+	public int search(GameState state, long timeLimitMillis, long playoutLimit)
+	{
+		long start = System.currentTimeMillis();
+
+		if(timeLimitMillis <= 0 && playoutLimit <= 0)
+		{
+			throw new IllegalArgumentException("a time or playout limit is required");
+		}
+
+		//Initialize search
+		this.playoutLimit = (playoutLimit > 0) ? playoutLimit : Long.MAX_VALUE;
+		this.deadline = (timeLimitMillis > 0) ? start + timeLimitMillis : Long.MAX_VALUE;
+		this.playouts = 0;
+		this.stopRequested = false;
+		bestVisits = 0;
+		bestWins = 0;
+
+		nodeCount = 1;
+		firstChild[0] = -1;
+		childCount[0] = 0;
+		visits[0] = 0;
+		wins[0] = 0;
+		nodePlayer[0] = 0;
+
+		if(state.getFreeLineCount() == 0)
+		{
+			elapsedMillis = System.currentTimeMillis() - start;
+			return -1;
+		}
+
+		//Play from the opening book
+		if(openingBook != null)
+		{
+			int move = openingBook.getBestMove(state);
+			if(move >= 0)
+			{
+				elapsedMillis = System.currentTimeMillis() - start;
+				return move;
+			}
+		}
+
+		if(!expand(0, state, new int[state.getLineCount()]))
+		{
+			throw new IllegalStateException("not enough memory to expand the root position");
+		}
+
+		//Start helpers
+		Future<?>[] helperResults = new Future<?>[helpers.length];
+		for(int i = 0; i < helpers.length; i++)
+		{
+			helpers[i] = new Worker(new GameState(state), start + i + 1);
+			helperResults[i] = helperPool.submit(helpers[i]);
+		}
+
+		//Run on this thread too
+		new Worker(state, start).run();
+
+		stopHelpers(helperResults);
+
+		//Choose most visited move
+		int best = -1;
+		for(int i = 0; i < childCount[0]; i++)
+		{
+			int child = firstChild[0] + i;
+
+			if(best < 0 || visits[child] > visits[best])
+			{
+				best = child;
+			}
+		}
+
+		elapsedMillis = System.currentTimeMillis() - start;
+		bestVisits = visits[best];
+		bestWins = wins[best];
+		return nodeMove[best];
+	}
+
+	/**
+	 * Returns the fraction of playouts through the chosen move which were won
+	 * by the player making it
+	 */
+	public double getWinRate()
+	{
+		return (bestVisits == 0) ? 0 : (double) bestWins / bestVisits;
+	}
+
+	/**
+	 * Returns the number of playouts made by the last search
+	 */
+	public long getPlayouts()
+	{
+		return playouts;
+	}
+
+	/**
+	 * Returns the number of nodes in the tree built by the last search
+	 */
+	public int getNodeCount()
+	{
+		return nodeCount;
+	}
+
+	/**
+	 * Returns the time taken by the last search
+	 */
+	public long getElapsedMillis()
+	{
+		return elapsedMillis;
+	}
+
+	/**
+	 * Returns the speed of the last search in playouts per second
+	 */
+	public long getPlayoutsPerSecond()
+	{
+		return playouts * 1000 / Math.max(1, elapsedMillis);
+	}
+
+	/**
+	 * Stops the helper threads and waits for them to finish
+	 *
+	 * @param results futures returned when the helpers were submitted
+	 */
+	private void stopHelpers(Future<?>[] results)
+	{
+		stopRequested = true;
+
+		try
+		{
+			for(Future<?> result : results)
+			{
+				try
+				{
+					result.get();
+				}
+				catch(ExecutionException e)
+				{
+					throw new IllegalStateException("helper search failed", e.getCause());
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			stopRequested = false;
+		}
+	}
+
+	/**
+	 * Adds the children of a leaf node (must hold treeLock)
+	 *
+	 * @param node node to expand
+	 * @param state position at the node
+	 * @param buffer buffer to generate moves into
+	 * @return false if the arena is full
+	 */
+	private boolean expand(int node, GameState state, int[] buffer)
+	{
+		int count = state.getMoves(buffer);
+		if(nodeCount + count > nodeMove.length)
+		{
+			return false;
+		}
+
+		byte player = (byte) (state.isPlayer1Turn() ? 1 : 2);
+
+		for(int i = 0; i < count; i++)
+		{
+			int child = nodeCount + i;
+
+			nodeMove[child] = buffer[i];
+			nodePlayer[child] = player;
+			firstChild[child] = -1;
+			childCount[child] = 0;
+			visits[child] = 0;
+			wins[child] = 0;
+		}
+
+		firstChild[node] = nodeCount;
+		childCount[node] = count;
+		nodeCount += count;
+		return true;
+	}
+
+	/**
+	 * Selects the child with the highest UCT value (must hold treeLock)
+	 *
+	 * Unvisited children are always selected first.
+	 */
+	private int selectChild(int node)
+	{
+		int first = firstChild[node];
+		int end = first + childCount[node];
+		double logVisits = Math.log(visits[node]);
+		double bestValue = Double.NEGATIVE_INFINITY;
+		int best = first;
+
+		for(int child = first; child < end; child++)
+		{
+			int n = visits[child];
+			if(n == 0)
+			{
+				return child;
+			}
+
+			double value = (double) wins[child] / n + EXPLORATION * Math.sqrt(logVisits / n);
+			if(value > bestValue)
+			{
+				bestValue = value;
+				best = child;
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * Runs playouts from one copy of the root position
+	 */
+	private class Worker implements Runnable
+	{
+		private final GameState state;
+		private final int[] moves;
+		private final int[] path;
+		private final int[] undos;
+		private long random;
+
+		/**
+		 * Creates a new worker
+		 *
+		 * @param state position to search (restored after each playout)
+		 * @param seed random number seed
+		 */
+		public Worker(GameState state, long seed)
+		{
+			this.state = state;
+			this.moves = new int[state.getLineCount()];
+			this.path = new int[state.getFreeLineCount() + 1];
+			this.undos = new int[state.getFreeLineCount()];
+			this.random = seed * 0x9E3779B97F4A7C15L | 1;
+		}
+
+		@Override
+		public void run()
+		{
+			while(!stopRequested)
+			{
+				int pathLength;
+				int undoCount = 0;
+
+				//Select a leaf, adding virtual losses along the way
+				synchronized(treeLock)
+				{
+					if(playouts != 0 && (playouts >= playoutLimit || System.currentTimeMillis() >= deadline))
+					{
+						stopRequested = true;
+						break;
+					}
+
+					int node = 0;
+					path[0] = 0;
+					pathLength = 1;
+					visits[0]++;
+
+					for(;;)
+					{
+						if(firstChild[node] < 0)
+						{
+							//Expand leaves which have been visited enough
+							if(state.getFreeLineCount() == 0 || visits[node] <= EXPAND_VISITS ||
+									!expand(node, state, moves))
+							{
+								break;
+							}
+						}
+
+						if(childCount[node] == 0)
+						{
+							break;
+						}
+
+						node = selectChild(node);
+						visits[node]++;
+						path[pathLength++] = node;
+
+						state.move(nodePlayer[node], nodeMove[node]);
+						undos[undoCount++] = state.getUndoRecord();
+					}
+				}
+
+				//Play out the rest of the game
+				int playoutStart = undoCount;
+				int lastMove = (pathLength > 1) ? nodeMove[path[pathLength - 1]] : -1;
+
+				while(state.getFreeLineCount() != 0)
+				{
+					lastMove = choosePlayoutMove(lastMove);
+					state.move(state.isPlayer1Turn() ? 1 : 2, lastMove);
+					undos[undoCount++] = state.getUndoRecord();
+				}
+
+				int winner = state.getWinner();
+
+				while(undoCount > playoutStart)
+				{
+					state.undo(undos[--undoCount]);
+				}
+
+				//Record result (visits were already counted)
+				synchronized(treeLock)
+				{
+					for(int i = 1; i < pathLength; i++)
+					{
+						if(nodePlayer[path[i]] == winner)
+						{
+							wins[path[i]]++;
+						}
+					}
+
+					playouts++;
+				}
+
+				//Restore root position
+				while(undoCount > 0)
+				{
+					state.undo(undos[--undoCount]);
+				}
+			}
+		}
+
+		/**
+		 * Chooses the next move of a playout
+		 *
+		 * @param lastMove the previous move made (or -1)
+		 */
+		private int choosePlayoutMove(int lastMove)
+		{
+			if(state.getCapturableCount() != 0)
+			{
+				return findCapture(lastMove);
+			}
+
+			//Try a few random lines before generating all the moves
+			boolean safe = state.hasSafeMove();
+			int lineCount = state.getLineCount();
+
+			for(int i = 0; i < RANDOM_PROBES; i++)
+			{
+				int line = nextRandom(lineCount);
+
+				if(safe ? state.isSafeLine(line) : !state.isLineSet(line))
+				{
+					return GameState.encodeMove(state.getLineX(line), state.getLineY(line),
+							state.isLeftLine(line));
+				}
+			}
+
+			int count = safe ? state.getSafeMoves(moves) : state.getMoves(moves);
+			return moves[nextRandom(count)];
+		}
+
+		/**
+		 * Returns a move which completes a square
+		 *
+		 * @param lastMove the previous move made (or -1)
+		 */
+		private int findCapture(int lastMove)
+		{
+			int size = state.getSize();
+			int move;
+
+			//The square is usually next to the last move
+			if(lastMove >= 0)
+			{
+				int x = GameState.getMoveX(lastMove);
+				int y = GameState.getMoveY(lastMove);
+
+				move = GameState.isMoveLeft(lastMove) ? findCapture(x - 1, y) : findCapture(x, y - 1);
+				if(move >= 0)
+				{
+					return move;
+				}
+
+				move = findCapture(x, y);
+				if(move >= 0)
+				{
+					return move;
+				}
+			}
+
+			//Search the whole board
+			for(int y = 0; y < size; y++)
+			{
+				for(int x = 0; x < size; x++)
+				{
+					move = findCapture(x, y);
+					if(move >= 0)
+					{
+						return move;
+					}
+				}
+			}
+
+			throw new IllegalStateException("no capturable square found");
+		}
+
+		/**
+		 * Returns the move which completes a square
+		 *
+		 * @param x x coordinate of the square
+		 * @param y y coordinate of the square
+		 * @return the move or -1 if the square is not on the board or does not have 3 sides
+		 */
+		private int findCapture(int x, int y)
+		{
+			int size = state.getSize();
+
+			if(x < 0 || y < 0 || x >= size || y >= size || state.getSideCount(x, y) != 3)
+			{
+				return -1;
+			}
+
+			int line = state.getLineIndex(x, y, false);
+			if(state.isLineSet(line))
+			{
+				line = state.getLineIndex(x, y + 1, false);
+				if(state.isLineSet(line))
+				{
+					line = state.getLineIndex(x, y, true);
+					if(state.isLineSet(line))
+					{
+						line = state.getLineIndex(x + 1, y, true);
+					}
+				}
+			}
+
+			return GameState.encodeMove(state.getLineX(line), state.getLineY(line), state.isLeftLine(line));
+		}
+
+		/**
+		 * Returns a random number from 0 to bound - 1 (xorshift)
+		 */
+		private int nextRandom(int bound)
+		{
+			random ^= random << 13;
+			random ^= random >>> 7;
+			random ^= random << 17;
+			return (int) ((random >>> 33) % bound);
+		}
+	}
+}
@@ -0,0 +1,317 @@
+package uk.org.cowgill.james.squares;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A file of opening moves and how well they did, read through a memory mapping
+ *
+ * Each entry records a position (by symmetry-canonical hash), a move from
+ * it (as a line on the canonical board), the number of games the move was
+ * played in and the number of points the player making it scored (1 for a
+ * win). As in GameController, a tied game is won by the player who went
+ * second. Entries are sorted by hash and then line, so the moves for a
+ * position are found with a binary search of the mapped file.
+ *
+ * File format (big endian):
+ * - int: magic number (MAGIC)
+ * - int: format version (VERSION)
+ * - int: board size
+ * - int: number of entries
+ * - entries: long canonical hash, int canonical line, int games, int points
+ *
+ * Books are created using OpeningBookGenerator.
+ *
+ * @author James
+ */
+public class OpeningBook
+{
+	/**
+	 * Magic number at the start of opening book files ("SQOB")
+	 */
+	public static final int MAGIC = 0x53514F42;
+
+	/**
+	 * The current version of the file format
+	 *
+	 * Version 1 books scored 2 points for a win and 1 for a tie.
+	 */
+	public static final int VERSION = 2;
+
+	/**
+	 * The default number of games a move must have been played in to be used
+	 */
+	public static final int DEFAULT_MIN_GAMES = 4;
+
+	//File layout
+	private static final int HEADER_SIZE = 16;
+	private static final int ENTRY_SIZE = 20;
+
+	private final ByteBuffer buffer;
+	private final int size;
+	private final int entryCount;
+	private int minGames = DEFAULT_MIN_GAMES;
+
+	/**
+	 * Creates an opening book from a buffer containing an opening book file
+	 *
+	 * @param buffer buffer containing the file
+	 * @throws IOException if the file is not a valid opening book
+	 */
+	public OpeningBook(ByteBuffer buffer) throws IOException
+	{
+		if(buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+		{
+			throw new IOException("not an opening book file");
+		}
+
+		if(buffer.getInt(4) != VERSION)
+		{
+			throw new IOException("unsupported opening book version " + buffer.getInt(4));
+		}
+
+		int entries = buffer.getInt(12);
+		if(entries < 0 || buffer.capacity() < HEADER_SIZE + (long) entries * ENTRY_SIZE)
+		{
+			throw new IOException("opening book file is corrupt");
+		}
+
+		this.buffer = buffer;
+		this.size = buffer.getInt(8);
+		this.entryCount = entries;
+	}
+
+	/**
+	 * Opens an opening book file
+	 *
+	 * The file is mapped into memory (read only) and can be closed straight away.
+	 *
+	 * @param file file to open
+	 * @return the opening book
+	 * @throws IOException if the file cannot be read or is not a valid opening book
+	 */
+	public static OpeningBook open(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			if(channel.size() > Integer.MAX_VALUE)
+			{
+				throw new IOException("opening book file is too large");
+			}
+
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new OpeningBook(buffer);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes an opening book file
+	 *
+	 * The entries must already be sorted by hash (as signed longs) and then
+	 * line, with no duplicates.
+	 *
+	 * @param file file to write
+	 * @param size board size
+	 * @param keys canonical hash of the position of each entry
+	 * @param lines canonical line of each entry
+	 * @param games number of games each move was played in
+	 * @param points number of points each move scored
+	 * @param count number of entries
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(File file, int size, long[] keys, int[] lines,
+			int[] games, int[] points, int count) throws IOException
+	{
+		if(HEADER_SIZE + (long) count * ENTRY_SIZE > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("too many entries for one opening book file");
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * ENTRY_SIZE);
+
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(size);
+		buffer.putInt(count);
+
+		for(int i = 0; i < count; i++)
+		{
+			if(i > 0 && (keys[i] < keys[i - 1] || (keys[i] == keys[i - 1] && lines[i] <= lines[i - 1])))
+			{
+				throw new IllegalArgumentException("opening book entries are not sorted");
+			}
+
+			buffer.putLong(keys[i]);
+			buffer.putInt(lines[i]);
+			buffer.putInt(games[i]);
+			buffer.putInt(points[i]);
+		}
+
+		//Write file
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try
+		{
+			raf.setLength(0);
+			raf.write(buffer.array());
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns the board size the book is for
+	 */
+	public int getBoardSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the number of entries (position and move pairs) in the book
+	 */
+	public int getEntryCount()
+	{
+		return entryCount;
+	}
+
+	/**
+	 * Sets the number of games a move must have been played in to be chosen by getBestMove
+	 *
+	 * @param minGames minimum number of games
+	 */
+	public void setMinGames(int minGames)
+	{
+		this.minGames = minGames;
+	}
+
+	/**
+	 * Chooses a move from the book
+	 *
+	 * The move with the highest average score is chosen from the moves
+	 * which have been played in at least the minimum number of games.
+	 *
+	 * The canonical hash is calculated on a copy of the state, so the state
+	 * given does not keep updating its symmetric hashes while it is searched.
+	 *
+	 * @param state position to look up
+	 * @return the move (packed using GameState.encodeMove) or -1 if the position is not in the book
+	 */
+	public int getBestMove(GameState state)
+	{
+		if(state.getSize() != size)
+		{
+			return -1;
+		}
+
+		state = new GameState(state);
+		long key = state.getCanonicalHash();
+		int bestLine = -1;
+		long bestGames = 1;
+		long bestPoints = -1;
+
+		for(int i = findPosition(key); i >= 0 && i < entryCount && getKey(i) == key; i++)
+		{
+			long games = getGames(i);
+			long points = getPoints(i);
+
+			//Compare points / games without dividing
+			if(games >= minGames && points * bestGames > bestPoints * games)
+			{
+				bestLine = getLine(i);
+				bestGames = games;
+				bestPoints = points;
+			}
+		}
+
+		if(bestLine < 0)
+		{
+			return -1;
+		}
+
+		int line = state.fromCanonicalLine(bestLine);
+		return GameState.encodeMove(state.getLineX(line), state.getLineY(line), state.isLeftLine(line));
+	}
+
+	/**
+	 * Finds the first entry for a position
+	 *
+	 * @param key canonical hash of the position
+	 * @return the index of the first entry or -1 if the position is not in the book
+	 */
+	public int findPosition(long key)
+	{
+		int low = 0;
+		int high = entryCount;
+
+		//Find the first entry with a key >= the one given
+		while(low < high)
+		{
+			int mid = (low + high) >>> 1;
+
+			if(getKey(mid) < key)
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid;
+			}
+		}
+
+		return (low < entryCount && getKey(low) == key) ? low : -1;
+	}
+
+	/**
+	 * Returns the canonical hash of the position of an entry
+	 *
+	 * @param index entry index
+	 */
+	public long getKey(int index)
+	{
+		return buffer.getLong(HEADER_SIZE + index * ENTRY_SIZE);
+	}
+
+	/**
+	 * Returns the canonical line of the move of an entry
+	 *
+	 * @param index entry index
+	 */
+	public int getLine(int index)
+	{
+		return buffer.getInt(HEADER_SIZE + index * ENTRY_SIZE + 8);
+	}
+
+	/**
+	 * Returns the number of games the move of an entry was played in
+	 *
+	 * @param index entry index
+	 */
+	public int getGames(int index)
+	{
+		return buffer.getInt(HEADER_SIZE + index * ENTRY_SIZE + 12);
+	}
+
+	/**
+	 * Returns the number of points scored by the move of an entry (1 for each win)
+	 *
+	 * @param index entry index
+	 */
+	public int getPoints(int index)
+	{
+		return buffer.getInt(HEADER_SIZE + index * ENTRY_SIZE + 16);
+	}
+}
@@ -0,0 +1,250 @@
+package uk.org.cowgill.james.squares;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Creates opening book files from self-play games
+ *
+ * Games are played by SearchEngine (with a node limit) against itself.
+ * During the first few moves of each game, a random safe move is sometimes
+ * played instead so that the book covers more than one line. The result of
+ * each game is added to the statistics of every opening move played in it
+ * (tied games are won by the player who went second).
+ * Games are played in parallel, one engine per thread.
+ *
+ * Usage: OpeningBookGenerator file [size] [games] [plies] [nodes] [threads]
+ *
+ * @author James
+ */
+public class OpeningBookGenerator
+{
+	private static final int DEFAULT_GAMES = 1000;
+	private static final int DEFAULT_PLIES = 10;
+	private static final int DEFAULT_NODES = 5000;
+
+	//1 in this many opening moves are random
+	private static final int RANDOM_MOVE_RATE = 3;
+
+	//Memory used by each engine
+	private static final long ENGINE_MEMORY = 16L << 20;
+
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		if(args.length == 0)
+		{
+			System.err.println("Usage: OpeningBookGenerator file [size] [games] [plies] [nodes] [threads]");
+			System.exit(1);
+		}
+
+		File file = new File(args[0]);
+		int size = (args.length > 1) ? Integer.parseInt(args[1]) : GameController.DEFAULT_BOARD_SIZE;
+		int games = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_GAMES;
+		int plies = (args.length > 3) ? Integer.parseInt(args[3]) : DEFAULT_PLIES;
+		int nodes = (args.length > 4) ? Integer.parseInt(args[4]) : DEFAULT_NODES;
+		int threads = (args.length > 5) ? Integer.parseInt(args[5]) :
+				Runtime.getRuntime().availableProcessors();
+
+		long start = System.currentTimeMillis();
+		TreeMap<Long, TreeMap<Integer, int[]>> stats = generate(size, games, plies, nodes, threads);
+		long time = Math.max(1, System.currentTimeMillis() - start);
+
+		//Flatten (the maps are already in file order)
+		int count = 0;
+		for(TreeMap<Integer, int[]> moves : stats.values())
+		{
+			count += moves.size();
+		}
+
+		long[] keys = new long[count];
+		int[] lines = new int[count];
+		int[] gameCounts = new int[count];
+		int[] points = new int[count];
+		int i = 0;
+
+		for(Map.Entry<Long, TreeMap<Integer, int[]>> position : stats.entrySet())
+		{
+			for(Map.Entry<Integer, int[]> move : position.getValue().entrySet())
+			{
+				keys[i] = position.getKey();
+				lines[i] = move.getKey();
+				gameCounts[i] = move.getValue()[0];
+				points[i] = move.getValue()[1];
+				i++;
+			}
+		}
+
+		OpeningBook.write(file, size, keys, lines, gameCounts, points, count);
+
+		System.out.println("Played " + games + " games in " + time + " ms on " + threads + " threads");
+		System.out.println("Wrote " + count + " entries (" + stats.size() + " positions) to " + file);
+	}
+
+	/**
+	 * Plays self-play games in parallel and collects the statistics of the opening moves
+	 *
+	 * @param size board size
+	 * @param games number of games
+	 * @param plies number of moves at the start of each game to record
+	 * @param nodes node limit for each engine move
+	 * @param threads number of threads to use
+	 * @return map of canonical position hash to map of canonical line to {games, points}
+	 */
+	public static TreeMap<Long, TreeMap<Integer, int[]>> generate(int size, int games,
+			int plies, int nodes, int threads) throws InterruptedException
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<TreeMap<Long, TreeMap<Integer, int[]>>>> futures =
+				new ArrayList<Future<TreeMap<Long, TreeMap<Integer, int[]>>>>();
+
+		try
+		{
+			//Split games between the threads
+			for(int i = 0; i < threads; i++)
+			{
+				int count = games / threads + ((i < games % threads) ? 1 : 0);
+				futures.add(pool.submit(new Worker(size, count, plies, nodes, i)));
+			}
+
+			//Merge the statistics
+			TreeMap<Long, TreeMap<Integer, int[]>> total = new TreeMap<Long, TreeMap<Integer, int[]>>();
+			for(Future<TreeMap<Long, TreeMap<Integer, int[]>>> future : futures)
+			{
+				for(Map.Entry<Long, TreeMap<Integer, int[]>> position : future.get().entrySet())
+				{
+					for(Map.Entry<Integer, int[]> move : position.getValue().entrySet())
+					{
+						addResult(total, position.getKey(), move.getKey(),
+								move.getValue()[0], move.getValue()[1]);
+					}
+				}
+			}
+
+			return total;
+		}
+		catch(ExecutionException e)
+		{
+			throw new IllegalStateException("opening book generation failed", e.getCause());
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Adds games to the statistics of a move
+	 */
+	private static void addResult(TreeMap<Long, TreeMap<Integer, int[]>> stats,
+			long key, int line, int games, int points)
+	{
+		TreeMap<Integer, int[]> moves = stats.get(key);
+		if(moves == null)
+		{
+			moves = new TreeMap<Integer, int[]>();
+			stats.put(key, moves);
+		}
+
+		int[] moveStats = moves.get(line);
+		if(moveStats == null)
+		{
+			moveStats = new int[2];
+			moves.put(line, moveStats);
+		}
+
+		moveStats[0] += games;
+		moveStats[1] += points;
+	}
+
+	/**
+	 * Plays some of the games on one thread
+	 */
+	private static class Worker implements Callable<TreeMap<Long, TreeMap<Integer, int[]>>>
+	{
+		private final int size;
+		private final int games;
+		private final int plies;
+		private final int nodes;
+		private final Random random;
+
+		public Worker(int size, int games, int plies, int nodes, int seed)
+		{
+			this.size = size;
+			this.games = games;
+			this.plies = plies;
+			this.nodes = nodes;
+			this.random = new Random(seed);
+		}
+
+		@Override
+		public TreeMap<Long, TreeMap<Integer, int[]>> call()
+		{
+			TreeMap<Long, TreeMap<Integer, int[]>> stats = new TreeMap<Long, TreeMap<Integer, int[]>>();
+			SearchEngine engine = new SearchEngine(ENGINE_MEMORY);
+			int[] moves = new int[2 * size * (size + 1)];
+			long[] keys = new long[plies];
+			int[] lines = new int[plies];
+			int[] players = new int[plies];
+
+			engine.setEndgameSolver(new EndgameSolver());
+
+			for(int game = 0; game < games; game++)
+			{
+				GameState state = new GameState(size, random.nextBoolean());
+				int ply = 0;
+
+				while(!state.isComplete())
+				{
+					int player = state.isPlayer1Turn() ? 1 : 2;
+					int move;
+
+					//Choose move
+					if(ply < plies && state.hasSafeMove() && random.nextInt(RANDOM_MOVE_RATE) == 0)
+					{
+						move = moves[random.nextInt(state.getSafeMoves(moves))];
+					}
+					else
+					{
+						move = engine.search(state, 0, nodes);
+					}
+
+					//Record opening moves
+					if(ply < plies)
+					{
+						int line = state.getLineIndex(GameState.getMoveX(move), GameState.getMoveY(move),
+								GameState.isMoveLeft(move));
+
+						//Use a copy so the engine's state does not maintain symmetric hashes
+						GameState copy = new GameState(state);
+						keys[ply] = copy.getCanonicalHash();
+						lines[ply] = copy.toCanonicalLine(line);
+						players[ply] = player;
+					}
+
+					state.move(player, move);
+					ply++;
+				}
+
+				//Add the result to each opening move
+				int winner = state.getWinner();
+
+				for(int i = 0; i < Math.min(ply, plies); i++)
+				{
+					addResult(stats, keys[i], lines[i], 1, (players[i] == winner) ? 1 : 0);
+				}
+			}
+
+			return stats;
+		}
+	}
+}
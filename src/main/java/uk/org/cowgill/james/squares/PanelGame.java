@@ -7,6 +7,7 @@ import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.Stroke;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -16,6 +17,9 @@ import java.awt.event.WindowEvent;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
 import javax.swing.JButton;
@@ -27,6 +31,7 @@ import javax.swing.JSeparator;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.border.LineBorder;
 import javax.swing.event.MouseInputAdapter;
 
@@ -39,9 +44,17 @@ public class PanelGame extends JPanel implements GameOutput
 {
 	private static final long serialVersionUID = 1L;
 
+	//Time to spend reconnecting after the connection is lost (in milliseconds)
+	private static final int RECONNECT_TIME = 60000;
+	private static final int RETRY_DELAY = 1000;
+	
 	//Controller
 	private final GameController ctrl;
 	
+	//Address to listen on (as host) or connect to when reconnecting
+	private final boolean isMaster;
+	private final SocketAddress reconnectAddress;
+	
 	//Form controls
 	private final JLabel lblPlayer[] = new JLabel[2];
 	private final JLabel lblScore[] = new JLabel[2];
@@ -112,12 +125,25 @@ public class PanelGame extends JPanel implements GameOutput
 		
 		add(panel2, BorderLayout.SOUTH);
 		
-		//Game canvas
-		add(gameCanvas, BorderLayout.CENTER);
+		//Game canvas (scrolls on large boards)
+		JScrollPane canvasPane = new JScrollPane(gameCanvas);
+		canvasPane.setBorder(null);
+		add(canvasPane, BorderLayout.CENTER);
 		
 		//Default button
 		window.getRootPane().setDefaultButton(sendButton);
 		
+		//Reconnect to the same place if the connection is lost
+		this.isMaster = isMaster;
+		if(isMaster)
+		{
+			reconnectAddress = new InetSocketAddress(channel.socket().getLocalPort());
+		}
+		else
+		{
+			reconnectAddress = channel.socket().getRemoteSocketAddress();
+		}
+		
 		//Create controller
 		this.ctrl = new GameController(channel, this, myName, isMaster);
 		
@@ -147,10 +173,33 @@ public class PanelGame extends JPanel implements GameOutput
 				}
 				else if(text.startsWith("/play"))
 				{
+					//Get board size
+					String sizeText = text.substring(5).trim();
+					int size = GameController.DEFAULT_BOARD_SIZE;
+					
+					if(sizeText.length() != 0)
+					{
+						try
+						{
+							size = Integer.parseInt(sizeText);
+						}
+						catch(NumberFormatException except)
+						{
+							size = 0;
+						}
+						
+						if(size <= 0 || size > GameController.MAX_BOARD_SIZE)
+						{
+							chatOut.append("\nThe board size must be between 1 and " +
+									GameController.MAX_BOARD_SIZE + ".");
+							return;
+						}
+					}
+					
 					//Start new game
 					try
 					{
-						ctrl.startGame();
+						ctrl.startGame(size);
 					}
 					catch(IllegalStateException except)
 					{
@@ -200,7 +249,7 @@ public class PanelGame extends JPanel implements GameOutput
 		//Connected
 		lblPlayer[0].setText(ctrl.getPlayerName(1));
 		lblPlayer[1].setText(ctrl.getPlayerName(2));
-		chatOut.append("\nConnected.\nType /play to start a new game.");
+		chatOut.append("\nConnected.\nType /play to start a new game (or /play <size> for a different board size).");
 		sendButton.setEnabled(true);
 		textField.setEnabled(true);
 	}
@@ -335,6 +384,138 @@ public class PanelGame extends JPanel implements GameOutput
 		updatePlayerTurnIndicator(false);
 	}
 	
+	@Override
+	public void gameSuspended()
+	{
+		chatOut.append("\nConnection lost. Reconnecting...");
+		sendButton.setEnabled(false);
+		textField.setEnabled(false);
+		
+		//Disable moves
+		gameCanvas.moveComplete(false);
+		updatePlayerTurnIndicator(false);
+		
+		//Reconnect in the background
+		Thread thread = new Thread(new Reconnector(), "PanelGame Reconnect");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	@Override
+	public void gameResumed(GameState state, boolean yourMove)
+	{
+		chatOut.append("\nReconnected.");
+		sendButton.setEnabled(true);
+		textField.setEnabled(true);
+		
+		//Set whose move it is
+		updatePlayerTurnIndicator(yourMove);
+		
+		//Show any moves which were missed
+		gameCanvas.setGameState(state, yourMove);
+	}
+	
+	/**
+	 * Resumes the game with a new connection
+	 * 
+	 * @param channel the new connection or null if reconnecting failed
+	 */
+	private void resumeGame(SocketChannel channel)
+	{
+		if(!ctrl.isSuspended())
+		{
+			//Closed while reconnecting
+			if(channel != null)
+			{
+				try
+				{
+					channel.close();
+				}
+				catch(IOException e)
+				{
+				}
+			}
+		}
+		else if(channel != null)
+		{
+			ctrl.resume(channel);
+		}
+		else
+		{
+			//Give up the game
+			chatOut.append("\nCould not reconnect.");
+			ctrl.close();
+		}
+	}
+	
+	/**
+	 * Makes a new connection to the other player after the connection is lost
+	 * 
+	 * The host listens on its port again and the other player connects to it
+	 * until one succeeds or RECONNECT_TIME has passed.
+	 * 
+	 * @author James
+	 */
+	private class Reconnector implements Runnable
+	{
+		@Override
+		public void run()
+		{
+			SocketChannel channel = null;
+			long giveUpTime = System.currentTimeMillis() + RECONNECT_TIME;
+			
+			while(channel == null && System.currentTimeMillis() < giveUpTime)
+			{
+				try
+				{
+					if(isMaster)
+					{
+						//Wait for the other player to connect
+						ServerSocketChannel listener = ServerSocketChannel.open();
+						
+						try
+						{
+							listener.socket().bind(reconnectAddress);
+							listener.socket().setSoTimeout((int) Math.max(1, giveUpTime - System.currentTimeMillis()));
+							channel = listener.socket().accept().getChannel();
+						}
+						finally
+						{
+							listener.close();
+						}
+					}
+					else
+					{
+						channel = SocketChannel.open(reconnectAddress);
+					}
+				}
+				catch(IOException e)
+				{
+					//Try again soon
+					try
+					{
+						Thread.sleep(RETRY_DELAY);
+					}
+					catch(InterruptedException e1)
+					{
+						break;
+					}
+				}
+			}
+			
+			//Return to swing thread
+			final SocketChannel result = channel;
+			SwingUtilities.invokeLater(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					resumeGame(result);
+				}
+			});
+		}
+	}
+	
 	/**
 	 * The canvas used to draw the main game content
 	 * 
@@ -346,15 +527,22 @@ public class PanelGame extends JPanel implements GameOutput
 		
 		//Position and Size Constants
 		private static final int PADDING = 16;
-		private static final int DOT_SIZE = 10;
-		private static final int SQUARE_SIZE = 48;
-		private static final int SQUARES = 8;
+		private static final int DEFAULT_DOT_SIZE = 10;
+		private static final int DEFAULT_SQUARE_SIZE = 48;
+		private static final int MIN_SQUARE_SIZE = 6;
 
-		//Game area size without padding
-		private static final int CONTENT_SIZE = SQUARE_SIZE * SQUARES + DOT_SIZE;
+		//Game area size (without padding) used for the default board size
+		private static final int DEFAULT_CONTENT_SIZE =
+				DEFAULT_SQUARE_SIZE * GameController.DEFAULT_BOARD_SIZE + DEFAULT_DOT_SIZE;
+		
+		//Sizes for the current board
+		private int dotSize = DEFAULT_DOT_SIZE;
+		private int squareSize = DEFAULT_SQUARE_SIZE;
+		private int squares = GameController.DEFAULT_BOARD_SIZE;
+		private int contentSize = DEFAULT_CONTENT_SIZE;
 		
 		//Stroke used to draw lines with
-		private final Stroke lineStroke = new BasicStroke(4);
+		private Stroke lineStroke = new BasicStroke(4);
 		
 		//Square colours
 		private final Color[] squareColour = new Color[]{
@@ -379,7 +567,7 @@ public class PanelGame extends JPanel implements GameOutput
 			super(true);
 			
 			//Setup panel
-			setPreferredSize(new Dimension(PADDING * 2 + CONTENT_SIZE, PADDING * 2 + CONTENT_SIZE));
+			setPreferredSize(new Dimension(PADDING * 2 + contentSize, PADDING * 2 + contentSize));
 			setBorder(new LineBorder(Color.BLACK));
 			setBackground(squareColour[0]);
 			
@@ -424,17 +612,17 @@ public class PanelGame extends JPanel implements GameOutput
 					}
 					
 					//Calulate the square and where inside the square we are
-					int x 		= (e.getX() - PADDING - DOT_SIZE / 2) / SQUARE_SIZE;
-					int xInside	= (e.getX() - PADDING - DOT_SIZE / 2) % SQUARE_SIZE;
-					int y 		= (e.getY() - PADDING - DOT_SIZE / 2) / SQUARE_SIZE;
-					int yInside	= (e.getY() - PADDING - DOT_SIZE / 2) % SQUARE_SIZE;
+					int x 		= (e.getX() - PADDING - dotSize / 2) / squareSize;
+					int xInside	= (e.getX() - PADDING - dotSize / 2) % squareSize;
+					int y 		= (e.getY() - PADDING - dotSize / 2) / squareSize;
+					int yInside	= (e.getY() - PADDING - dotSize / 2) % squareSize;
 					boolean isLeft;
 					
 					//Check for padding positions
-					if(x == 8)
+					if(x == squares)
 					{
 						//Bottom right corner?
-						if(y == 8)
+						if(y == squares)
 						{
 							//Which way to move up?
 							if(xInside < yInside)
@@ -457,7 +645,7 @@ public class PanelGame extends JPanel implements GameOutput
 					else
 					{
 						//Bottom side
-						if(y == 8)
+						if(y == squares)
 						{
 							isLeft = false; 
 						}
@@ -465,7 +653,7 @@ public class PanelGame extends JPanel implements GameOutput
 						{
 							//MAIN TESTER
 							//Which of the 4 surrounding lines is the nearest?
-							if(SQUARE_SIZE - xInside < yInside)
+							if(squareSize - xInside < yInside)
 							{
 								//Bottom right
 								if(xInside < yInside)
@@ -538,6 +726,21 @@ public class PanelGame extends JPanel implements GameOutput
 		public void setGameState(GameState state, boolean myMove)
 		{
 			this.state = state;
+			
+			//Scale the board to fit the default area (unless the squares would be too small)
+			if(state != null && state.getSize() != squares)
+			{
+				squares = state.getSize();
+				squareSize = Math.max(MIN_SQUARE_SIZE,
+						DEFAULT_SQUARE_SIZE * GameController.DEFAULT_BOARD_SIZE / squares);
+				dotSize = Math.max(2, squareSize * DEFAULT_DOT_SIZE / DEFAULT_SQUARE_SIZE);
+				contentSize = squareSize * squares + dotSize;
+				lineStroke = new BasicStroke(Math.max(1, squareSize / 12));
+				
+				setPreferredSize(new Dimension(PADDING * 2 + contentSize, PADDING * 2 + contentSize));
+				revalidate();
+			}
+			
 			moveComplete(myMove);
 		}
 		
@@ -550,17 +753,28 @@ public class PanelGame extends JPanel implements GameOutput
 			//Repaint game window
 			if(state != null)
 			{
-				Graphics2D g = (Graphics2D) gOld.create(PADDING, PADDING, CONTENT_SIZE, CONTENT_SIZE);
+				Graphics2D g = (Graphics2D) gOld.create(PADDING, PADDING, contentSize, contentSize);
+				
+				//Only paint the visible part of large boards
+				Rectangle clip = g.getClipBounds();
+				int minX = 0, minY = 0, maxX = squares, maxY = squares;
+				if(clip != null)
+				{
+					minX = Math.max(0, (clip.x - dotSize) / squareSize);
+					minY = Math.max(0, (clip.y - dotSize) / squareSize);
+					maxX = Math.min(squares, (clip.x + clip.width) / squareSize + 1);
+					maxY = Math.min(squares, (clip.y + clip.height) / squareSize + 1);
+				}
 
 				//Fill squares
-				for(int x = 0; x < 8; x++)
+				for(int x = minX; x < maxX; x++)
 				{
-					for(int y = 0; y < 8; y++)
+					for(int y = minY; y < maxY; y++)
 					{
 						g.setColor(squareColour[state.getSquareColour(x, y)]);
-						g.fillRect(x * SQUARE_SIZE + DOT_SIZE / 2,
-									y * SQUARE_SIZE + DOT_SIZE / 2,
-									SQUARE_SIZE, SQUARE_SIZE);
+						g.fillRect(x * squareSize + dotSize / 2,
+									y * squareSize + dotSize / 2,
+									squareSize, squareSize);
 					}
 				}
 				
@@ -571,60 +785,60 @@ public class PanelGame extends JPanel implements GameOutput
 				// Hover lines
 				if(lastMouseEnabled)
 				{
-					int baseX = lastMouseX * SQUARE_SIZE + DOT_SIZE / 2;
-					int baseY = lastMouseY * SQUARE_SIZE + DOT_SIZE / 2;
+					int baseX = lastMouseX * squareSize + dotSize / 2;
+					int baseY = lastMouseY * squareSize + dotSize / 2;
 					
 					if(lastMouseIsLeft)
 					{
 						//Draw left line
-						g.drawLine(baseX, baseY, baseX, baseY + SQUARE_SIZE);
+						g.drawLine(baseX, baseY, baseX, baseY + squareSize);
 					}
 					else
 					{
 						//Draw top line
-						g.drawLine(baseX, baseY, baseX + SQUARE_SIZE, baseY);
+						g.drawLine(baseX, baseY, baseX + squareSize, baseY);
 					}
 				}
 				
 				// Top lines
 				g.setColor(Color.BLACK);
-				for(int x = 0; x < 8; x++)
+				for(int x = minX; x < maxX; x++)
 				{
-					for(int y = 0; y <= 8; y++)
+					for(int y = minY; y <= maxY; y++)
 					{
 						if(state.getTopLine(x, y))
 						{
-							g.drawLine(x * SQUARE_SIZE + DOT_SIZE / 2,
-										y * SQUARE_SIZE + DOT_SIZE / 2,
-										(x + 1) * SQUARE_SIZE + DOT_SIZE / 2,
-										y * SQUARE_SIZE + DOT_SIZE / 2);
+							g.drawLine(x * squareSize + dotSize / 2,
+										y * squareSize + dotSize / 2,
+										(x + 1) * squareSize + dotSize / 2,
+										y * squareSize + dotSize / 2);
 						}
 					}
 				}
 				
 				// Left lines
-				for(int x = 0; x <= 8; x++)
+				for(int x = minX; x <= maxX; x++)
 				{
-					for(int y = 0; y < 8; y++)
+					for(int y = minY; y < maxY; y++)
 					{
 						if(state.getLeftLine(x, y))
 						{
-							g.drawLine(x * SQUARE_SIZE + DOT_SIZE / 2,
-										y * SQUARE_SIZE + DOT_SIZE / 2,
-										x * SQUARE_SIZE + DOT_SIZE / 2,
-										(y + 1) * SQUARE_SIZE + DOT_SIZE / 2);
+							g.drawLine(x * squareSize + dotSize / 2,
+										y * squareSize + dotSize / 2,
+										x * squareSize + dotSize / 2,
+										(y + 1) * squareSize + dotSize / 2);
 						}
 					}
 				}
 				
 				//Paint dots
-				for(int x = 0; x <= 8; x++)
+				for(int x = minX; x <= maxX; x++)
 				{
-					for(int y = 0; y <= 8; y++)
+					for(int y = minY; y <= maxY; y++)
 					{
-						g.fillOval(SQUARE_SIZE * x,
-									SQUARE_SIZE * y,
-									DOT_SIZE, DOT_SIZE);
+						g.fillOval(squareSize * x,
+									squareSize * y,
+									dotSize, dotSize);
 					}
 				}
 			}
@@ -0,0 +1,67 @@
+package uk.org.cowgill.james.squares;
+
+/**
+ * Compares the speed of BatchPlayout with playing the same games through GameState
+ *
+ * Every batched game is replayed move by move with GameState.move() and
+ * the scores are checked. Usage: PlayoutBenchmark [size] [batches]
+ *
+ * @author James
+ */
+public class PlayoutBenchmark
+{
+	private static final int DEFAULT_BATCHES = 2000;
+
+	public static void main(String[] args)
+	{
+		int size = (args.length > 0) ? Integer.parseInt(args[0]) : GameController.DEFAULT_BOARD_SIZE;
+		int batches = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_BATCHES;
+
+		BatchPlayout batch = new BatchPlayout(size);
+		GameState start = new GameState(size, true);
+		GameState state = new GameState(size, true);
+		int[][] orders = new int[BatchPlayout.BATCH_SIZE][start.getLineCount()];
+		int games = batches * BatchPlayout.BATCH_SIZE;
+		int mismatches = 0;
+		long batchTime = 0;
+		long sequentialTime = 0;
+
+		for(int i = 0; i < batches; i++)
+		{
+			//Batched
+			long begin = System.nanoTime();
+			batch.play(start, i);
+			batchTime += System.nanoTime() - begin;
+
+			for(int game = 0; game < BatchPlayout.BATCH_SIZE; game++)
+			{
+				batch.getMoveOrder(game, orders[game]);
+			}
+
+			//Sequential
+			begin = System.nanoTime();
+			for(int game = 0; game < BatchPlayout.BATCH_SIZE; game++)
+			{
+				int[] order = orders[game];
+				state.reset(true);
+
+				for(int line : order)
+				{
+					state.move(state.isPlayer1Turn() ? 1 : 2, state.getLineX(line),
+							state.getLineY(line), state.isLeftLine(line));
+				}
+
+				if(state.getScore(1) != batch.getScore(game, 1) || state.getScore(2) != batch.getScore(game, 2))
+				{
+					mismatches++;
+				}
+			}
+			sequentialTime += System.nanoTime() - begin;
+		}
+
+		System.out.printf("%d random games on %dx%d%n", games, size, size);
+		System.out.printf("Batched:    %10.0f games/sec%n", games * 1e9 / Math.max(1, batchTime));
+		System.out.printf("Sequential: %10.0f games/sec%n", games * 1e9 / Math.max(1, sequentialTime));
+		System.out.println("Games with different results: " + mismatches);
+	}
+}
@@ -0,0 +1,94 @@
+package uk.org.cowgill.james.squares;
+
+import java.util.Random;
+
+/**
+ * Measures how the search engine scales with the number of threads
+ *
+ * Each run searches the same positions to a fixed depth with a fresh
+ * transposition table. Usage: SearchBenchmark [size] [depth] [positions]
+ *
+ * @author James
+ */
+public class SearchBenchmark
+{
+	private static final int DEFAULT_SIZE = 5;
+	private static final int DEFAULT_DEPTH = 9;
+	private static final int DEFAULT_POSITIONS = 8;
+
+	public static void main(String[] args)
+	{
+		int size = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_SIZE;
+		int depth = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_DEPTH;
+		int positions = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_POSITIONS;
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		GameState[] states = createPositions(size, positions);
+		long baseTime = 0;
+
+		System.out.println("Board " + size + "x" + size + ", depth " + depth + ", " +
+				positions + " positions, " + cores + " cores");
+
+		for(int threads = 1; threads <= cores; threads = nextThreadCount(threads, cores))
+		{
+			SearchEngine engine = new SearchEngine();
+			engine.setThreads(threads);
+			engine.setMaxDepth(depth);
+
+			long nodes = 0;
+			long start = System.currentTimeMillis();
+
+			for(GameState state : states)
+			{
+				engine.getTable().clear();
+				engine.search(state, 0, 0);
+				nodes += engine.getNodes();
+			}
+
+			long time = Math.max(1, System.currentTimeMillis() - start);
+			if(threads == 1)
+			{
+				baseTime = time;
+			}
+
+			System.out.printf("%3d threads: %7d ms %10d nps  speedup %.2f%n",
+					threads, time, nodes * 1000 / time, (double) baseTime / time);
+
+			engine.setThreads(1);
+		}
+	}
+
+	/**
+	 * Returns the next number of threads to test (doubling, but always finishing with all the cores)
+	 */
+	private static int nextThreadCount(int threads, int cores)
+	{
+		return (threads == cores) ? cores + 1 : Math.min(threads * 2, cores);
+	}
+
+	/**
+	 * Creates positions by playing random safe moves from an empty board
+	 */
+	private static GameState[] createPositions(int size, int count)
+	{
+		Random random = new Random(1);
+		GameState[] states = new GameState[count];
+		int[] moves = new int[new GameState(size, true).getLineCount()];
+
+		for(int i = 0; i < count; i++)
+		{
+			GameState state = new GameState(size, true);
+			int played = random.nextInt(state.getLineCount() / 3);
+
+			for(int j = 0; j < played && state.hasSafeMove(); j++)
+			{
+				int moveCount = state.getSafeMoves(moves);
+				state.move(state.isPlayer1Turn() ? 1 : 2, moves[random.nextInt(moveCount)]);
+			}
+
+			states[i] = state;
+		}
+
+		return states;
+	}
+}
@@ -0,0 +1,789 @@
+package uk.org.cowgill.james.squares;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A computer player which chooses moves using an alpha-beta search
+ *
+ * The search uses iterative deepening, a transposition table and move
+ * ordering (previous best move, then captures, then safe moves). Values
+ * are the number of squares the player to move will gain from the current
+ * position minus the number the other player will gain.
+ *
+ * The engine searches in place on the GameState it is given, using
+ * move() and undo(). The state is restored before search returns.
+ *
+ * With more than one thread, the search runs in Lazy SMP style: helper
+ * threads search copies of the position, sharing the transposition table,
+ * and the result of the main thread is returned. Helpers only search the
+ * depth currently being searched by the main thread (starting with
+ * different root moves), so they never store results deeper than the main
+ * thread uses, and the value found at a given depth is the same as with one
+ * thread.
+ *
+ * This class is not thread safe.
+ *
+ * @author James
+ */
+public class SearchEngine
+{
+	/**
+	 * The default amount of memory used by the transposition table
+	 */
+	public static final long DEFAULT_MEMORY = 64L << 20;
+
+	/**
+	 * The maximum search depth
+	 */
+	public static final int MAX_DEPTH = 255;
+
+	//Larger than any position value (the number of squares on the largest board)
+	private static final int INFINITY = GameController.MAX_BOARD_SIZE * GameController.MAX_BOARD_SIZE + 1;
+
+	//Nodes between each time check
+	private static final int CHECK_INTERVAL = 1024;
+
+	//Move ordering scores
+	private static final int ORDER_BEST_MOVE = 1000;
+	private static final int ORDER_CAPTURE = 10;
+	private static final int ORDER_SAFE = 5;
+
+	private final TranspositionTable table;
+	private int maxDepth = MAX_DEPTH;
+	private EndgameSolver endgameSolver;
+	private OpeningBook openingBook;
+
+	//Parallel search
+	private SearchEngine[] helpers = new SearchEngine[0];
+	private ExecutorService helperPool;
+	private volatile boolean stopRequested;
+	private volatile int currentDepth;
+
+	//State of the current search
+	private GameState state;
+	private long nodes;
+	private long nodeLimit;
+	private long deadline;
+	private boolean aborted;
+	private int rootValue;
+	private final int[][] moveBuffers = new int[MAX_DEPTH + 2][];
+	private final int[][] orderBuffers = new int[MAX_DEPTH + 2][];
+
+	//Results of the last search
+	private int bestValue;
+	private int completedDepth;
+	private long elapsedMillis;
+
+	/**
+	 * Creates a new search engine using the default amount of memory
+	 */
+	public SearchEngine()
+	{
+		this(DEFAULT_MEMORY);
+	}
+
+	/**
+	 * Creates a new search engine
+	 *
+	 * @param memoryBytes maximum amount of memory used by the transposition table
+	 */
+	public SearchEngine(long memoryBytes)
+	{
+		this(new TranspositionTable(memoryBytes));
+	}
+
+	/**
+	 * Creates a new search engine using an existing transposition table
+	 *
+	 * @param table transposition table to use
+	 */
+	public SearchEngine(TranspositionTable table)
+	{
+		this.table = table;
+	}
+
+	/**
+	 * Sets the maximum search depth
+	 *
+	 * @param maxDepth maximum number of lines to search ahead (1 to MAX_DEPTH)
+	 */
+	public void setMaxDepth(int maxDepth)
+	{
+		if(maxDepth < 1 || maxDepth > MAX_DEPTH)
+		{
+			throw new IllegalArgumentException("maxDepth must be between 1 and " + MAX_DEPTH);
+		}
+
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * Sets the number of threads used to search
+	 *
+	 * @param threads number of threads (including the calling thread)
+	 */
+	public void setThreads(int threads)
+	{
+		if(threads < 1)
+		{
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+
+		//Stop old helper threads
+		if(helperPool != null)
+		{
+			helperPool.shutdown();
+			helperPool = null;
+		}
+
+		helpers = new SearchEngine[threads - 1];
+
+		if(threads > 1)
+		{
+			for(int i = 0; i < helpers.length; i++)
+			{
+				helpers[i] = new SearchEngine(table);
+			}
+
+			helperPool = Executors.newFixedThreadPool(helpers.length, new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "SearchEngine Helper");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Returns the number of threads used to search
+	 */
+	public int getThreads()
+	{
+		return helpers.length + 1;
+	}
+
+	/**
+	 * Sets the solver used for endgame positions (or null for none)
+	 *
+	 * Positions which the solver can solve (see EndgameSolver.canSolve) are
+	 * given to it instead of being searched.
+	 *
+	 * @param endgameSolver solver to use
+	 */
+	public void setEndgameSolver(EndgameSolver endgameSolver)
+	{
+		this.endgameSolver = endgameSolver;
+	}
+
+	/**
+	 * Sets the opening book checked before searching (or null for none)
+	 *
+	 * @param openingBook opening book to use
+	 */
+	public void setOpeningBook(OpeningBook openingBook)
+	{
+		this.openingBook = openingBook;
+	}
+
+	/**
+	 * Returns the transposition table used by this engine
+	 */
+	public TranspositionTable getTable()
+	{
+		return table;
+	}
+
+	/**
+	 * Finds the best move for the player whose turn it is
+	 *
+	 * The search stops when either limit is reached or the maximum depth has
+	 * been searched. The best move from the deepest completed iteration is
+	 * returned.
+	 *
+	 * @param state state to search (it is modified during the search, then restored)
+	 * @param timeLimitMillis maximum time to search for (0 for no limit)
+	 * @param nodeLimit maximum number of nodes to search (0 for no limit)
+	 * @return the best move (packed using GameState.encodeMove) or -1 if there are no moves
+	 */
+	public int search(GameState state, long timeLimitMillis, long nodeLimit)
+	{
+		long start = System.currentTimeMillis();
+		int bestMove = -1;
+
+		//Initialize search
+		this.state = state;
+		this.nodes = 0;
+		this.nodeLimit = (nodeLimit > 0) ? nodeLimit : Long.MAX_VALUE;
+		this.deadline = (timeLimitMillis > 0) ? start + timeLimitMillis : Long.MAX_VALUE;
+		this.aborted = false;
+		bestValue = 0;
+		completedDepth = 0;
+		currentDepth = 0;
+		table.newSearch();
+
+		for(SearchEngine helper : helpers)
+		{
+			helper.nodes = 0;
+		}
+
+		//Play from the opening book
+		if(openingBook != null)
+		{
+			bestMove = openingBook.getBestMove(state);
+			if(bestMove >= 0)
+			{
+				elapsedMillis = System.currentTimeMillis() - start;
+				this.state = null;
+				return bestMove;
+			}
+		}
+
+		//Use the exact result in the endgame
+		if(endgameSolver != null && state.getFreeLineCount() != 0 && endgameSolver.canSolve(state))
+		{
+			bestValue = endgameSolver.solve(state);
+			bestMove = endgameSolver.getBestMove();
+			completedDepth = state.getFreeLineCount();
+			nodes = endgameSolver.getNodes();
+			elapsedMillis = System.currentTimeMillis() - start;
+			this.state = null;
+			return bestMove;
+		}
+
+		//Start helpers
+		Future<?>[] helperResults = new Future<?>[helpers.length];
+		for(int i = 0; i < helpers.length; i++)
+		{
+			helperResults[i] = helperPool.submit(helpers[i].helperTask(new GameState(state), this, i + 1));
+		}
+
+		//Iterative deepening
+		int depthLimit = Math.min(maxDepth, state.getFreeLineCount());
+		for(int depth = 1; depth <= depthLimit; depth++)
+		{
+			currentDepth = depth;
+
+			int move = searchRoot(depth, bestMove, 0);
+			if(aborted)
+			{
+				break;
+			}
+
+			bestMove = move;
+			bestValue = rootValue;
+			completedDepth = depth;
+		}
+
+		//Stop helpers
+		stopHelpers(helperResults);
+
+		//If not even the first iteration completed, use the first ordered move
+		if(bestMove == -1 && state.getFreeLineCount() != 0)
+		{
+			orderMoves(0, -1);
+			bestMove = moveBuffers[0][0];
+		}
+
+		elapsedMillis = System.currentTimeMillis() - start;
+		this.state = null;
+		return bestMove;
+	}
+
+	/**
+	 * Returns the value of the best move found by the last search
+	 */
+	public int getValue()
+	{
+		return bestValue;
+	}
+
+	/**
+	 * Returns the depth of the last completed iteration of the last search
+	 */
+	public int getDepth()
+	{
+		return completedDepth;
+	}
+
+	/**
+	 * Returns the number of nodes visited by the last search (including helper threads)
+	 */
+	public long getNodes()
+	{
+		long total = nodes;
+
+		for(SearchEngine helper : helpers)
+		{
+			total += helper.nodes;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Returns the time taken by the last search
+	 */
+	public long getElapsedMillis()
+	{
+		return elapsedMillis;
+	}
+
+	/**
+	 * Returns the speed of the last search in nodes per second
+	 */
+	public long getNodesPerSecond()
+	{
+		return getNodes() * 1000 / Math.max(1, elapsedMillis);
+	}
+
+	/**
+	 * Creates the task run by a helper thread
+	 *
+	 * @param state copy of the position to search
+	 * @param main engine running the main search
+	 * @param index helper number (used to vary the root move order)
+	 */
+	private Runnable helperTask(final GameState state, final SearchEngine main, final int index)
+	{
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				SearchEngine.this.state = state;
+				nodes = 0;
+				nodeLimit = Long.MAX_VALUE;
+				deadline = Long.MAX_VALUE;
+				aborted = false;
+
+				//Search whatever depth the main thread is searching until stopped
+				for(int rotation = index; !main.stopRequested; rotation++)
+				{
+					int depth = main.currentDepth;
+					if(depth == 0)
+					{
+						Thread.yield();
+						continue;
+					}
+
+					searchRoot(depth, -1, rotation);
+					if(aborted)
+					{
+						break;
+					}
+				}
+
+				SearchEngine.this.state = null;
+			}
+		};
+	}
+
+	/**
+	 * Stops the helper threads and waits for them to finish
+	 *
+	 * @param results futures returned when the helpers were submitted
+	 */
+	private void stopHelpers(Future<?>[] results)
+	{
+		stopRequested = true;
+
+		for(SearchEngine helper : helpers)
+		{
+			helper.stopRequested = true;
+		}
+
+		try
+		{
+			for(Future<?> result : results)
+			{
+				try
+				{
+					result.get();
+				}
+				catch(ExecutionException e)
+				{
+					throw new IllegalStateException("helper search failed", e.getCause());
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			stopRequested = false;
+
+			for(SearchEngine helper : helpers)
+			{
+				helper.stopRequested = false;
+			}
+		}
+	}
+
+	/**
+	 * Searches the root position to the given depth
+	 *
+	 * @param depth depth to search
+	 * @param previousBest best move from the previous iteration (searched first)
+	 * @param rotation number of places to rotate the root moves by (0 for the main thread)
+	 * @return the best move
+	 */
+	private int searchRoot(int depth, int previousBest, int rotation)
+	{
+		int count = orderMoves(0, previousBest);
+		int[] moves = moveBuffers[0];
+		int player = state.isPlayer1Turn() ? 1 : 2;
+		int alpha = -INFINITY;
+		int bestMove = moves[0];
+
+		for(int i = 0; i < count; i++)
+		{
+			int move = moves[(i + rotation) % count];
+			int value = searchMove(player, move, depth, alpha, INFINITY, 0);
+			if(aborted)
+			{
+				break;
+			}
+
+			if(value > alpha)
+			{
+				alpha = value;
+				bestMove = move;
+			}
+		}
+
+		if(!aborted)
+		{
+			table.store(state.getHash(), bestMove, alpha, depth, TranspositionTable.BOUND_EXACT);
+		}
+
+		rootValue = alpha;
+		return bestMove;
+	}
+
+	/**
+	 * Makes a move, searches the resulting position and undoes the move
+	 *
+	 * @return the value of the move for the player making it
+	 */
+	private int searchMove(int player, int move, int depth, int alpha, int beta, int ply)
+	{
+		int scoreBefore = state.getScore(player);
+		GameState.MoveResult result = state.move(player, move);
+		int undo = state.getUndoRecord();
+		int value;
+
+		if(result == GameState.MoveResult.OkAgain)
+		{
+			//Same player moves again
+			int gained = state.getScore(player) - scoreBefore;
+			value = gained + negamax(depth - 1, alpha - gained, beta - gained, ply + 1);
+		}
+		else
+		{
+			value = -negamax(depth - 1, -beta, -alpha, ply + 1);
+		}
+
+		state.undo(undo);
+		return value;
+	}
+
+	/**
+	 * Searches a position using alpha-beta
+	 *
+	 * @return the value of the position for the player to move
+	 */
+	private int negamax(int depth, int alpha, int beta, int ply)
+	{
+		//Check limits
+		if((++nodes % CHECK_INTERVAL) == 0)
+		{
+			checkLimits();
+		}
+
+		if(aborted || state.getFreeLineCount() == 0)
+		{
+			return 0;
+		}
+		else if(depth <= 0 || ply > MAX_DEPTH)
+		{
+			return quiesce(ply);
+		}
+
+		//Probe transposition table
+		long key = state.getHash();
+		long entry = table.probe(key);
+		int ttMove = -1;
+
+		if(entry != TranspositionTable.NO_ENTRY)
+		{
+			ttMove = TranspositionTable.getMove(entry);
+
+			if(TranspositionTable.getDepth(entry) >= depth)
+			{
+				int value = TranspositionTable.getValue(entry);
+
+				switch(TranspositionTable.getBound(entry))
+				{
+					case TranspositionTable.BOUND_EXACT:
+						return value;
+
+					case TranspositionTable.BOUND_LOWER:
+						if(value >= beta)
+						{
+							return value;
+						}
+						break;
+
+					case TranspositionTable.BOUND_UPPER:
+						if(value <= alpha)
+						{
+							return value;
+						}
+						break;
+				}
+			}
+		}
+
+		//Search each move
+		int count = orderMoves(ply, ttMove);
+		int[] moves = moveBuffers[ply];
+		int player = state.isPlayer1Turn() ? 1 : 2;
+		int originalAlpha = alpha;
+		int best = -INFINITY;
+		int bestMove = -1;
+
+		for(int i = 0; i < count; i++)
+		{
+			int value = searchMove(player, moves[i], depth, alpha, beta, ply);
+			if(aborted)
+			{
+				return 0;
+			}
+
+			if(value > best)
+			{
+				best = value;
+				bestMove = moves[i];
+
+				if(value > alpha)
+				{
+					alpha = value;
+					if(alpha >= beta)
+					{
+						break;
+					}
+				}
+			}
+		}
+
+		//Store result
+		int bound;
+		if(best <= originalAlpha)
+		{
+			bound = TranspositionTable.BOUND_UPPER;
+		}
+		else if(best >= beta)
+		{
+			bound = TranspositionTable.BOUND_LOWER;
+		}
+		else
+		{
+			bound = TranspositionTable.BOUND_EXACT;
+		}
+
+		table.store(key, bestMove, best, depth, bound);
+		return best;
+	}
+
+	/**
+	 * Evaluates a position at the end of the search
+	 *
+	 * The player to move takes any squares which are immediately available.
+	 *
+	 * @return the value of the position for the player to move
+	 */
+	private int quiesce(int ply)
+	{
+		int player = state.isPlayer1Turn() ? 1 : 2;
+		int gained = 0;
+		int undoCount = 0;
+		int[] undos = getBuffer(orderBuffers, ply);
+
+		//Take squares until there are none left
+		while(state.getCapturableCount() != 0 && state.getFreeLineCount() != 0)
+		{
+			int count = state.getMoves(getBuffer(moveBuffers, ply));
+			int[] moves = moveBuffers[ply];
+			int scoreBefore = state.getScore(player);
+
+			for(int i = 0; i < count; i++)
+			{
+				if(getCaptureCount(moves[i]) != 0)
+				{
+					state.move(player, moves[i]);
+					undos[undoCount++] = state.getUndoRecord();
+					break;
+				}
+			}
+
+			gained += state.getScore(player) - scoreBefore;
+			nodes++;
+		}
+
+		//Restore state
+		while(undoCount > 0)
+		{
+			state.undo(undos[--undoCount]);
+		}
+
+		return gained;
+	}
+
+	/**
+	 * Generates and orders the moves for the given ply
+	 *
+	 * @param ply ply to generate moves for (moves are stored in moveBuffers[ply])
+	 * @param bestMove move to search first (or -1)
+	 * @return the number of moves
+	 */
+	private int orderMoves(int ply, int bestMove)
+	{
+		int[] moves = getBuffer(moveBuffers, ply);
+		int[] scores = getBuffer(orderBuffers, ply);
+		int count = state.getMoves(moves);
+
+		for(int i = 0; i < count; i++)
+		{
+			int move = moves[i];
+			int score;
+
+			//Score move
+			if(move == bestMove)
+			{
+				score = ORDER_BEST_MOVE;
+			}
+			else if(isSafe(move))
+			{
+				score = ORDER_SAFE;
+			}
+			else
+			{
+				score = ORDER_CAPTURE * getCaptureCount(move) - getGiveawayCount(move);
+			}
+
+			//Insertion sort (highest score first)
+			int j = i;
+			while(j > 0 && scores[j - 1] < score)
+			{
+				scores[j] = scores[j - 1];
+				moves[j] = moves[j - 1];
+				j--;
+			}
+
+			scores[j] = score;
+			moves[j] = move;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Returns true if a move is safe (does not give away a square)
+	 */
+	private boolean isSafe(int move)
+	{
+		return state.isSafeLine(state.getLineIndex(GameState.getMoveX(move),
+				GameState.getMoveY(move), GameState.isMoveLeft(move)));
+	}
+
+	/**
+	 * Returns the number of squares a move completes
+	 */
+	private int getCaptureCount(int move)
+	{
+		return countAdjacentSquares(move, 3);
+	}
+
+	/**
+	 * Returns the number of squares a move gives a third side to
+	 */
+	private int getGiveawayCount(int move)
+	{
+		return countAdjacentSquares(move, 2);
+	}
+
+	/**
+	 * Counts the squares next to a move which have the given number of sides
+	 */
+	private int countAdjacentSquares(int move, int sides)
+	{
+		int x = GameState.getMoveX(move);
+		int y = GameState.getMoveY(move);
+		int size = state.getSize();
+		int count = 0;
+
+		if(GameState.isMoveLeft(move))
+		{
+			if(x != 0 && state.getSideCount(x - 1, y) == sides)
+			{
+				count++;
+			}
+
+			if(x != size && state.getSideCount(x, y) == sides)
+			{
+				count++;
+			}
+		}
+		else
+		{
+			if(y != 0 && state.getSideCount(x, y - 1) == sides)
+			{
+				count++;
+			}
+
+			if(y != size && state.getSideCount(x, y) == sides)
+			{
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Returns the buffer for a ply, allocating it if needed
+	 */
+	private int[] getBuffer(int[][] buffers, int ply)
+	{
+		int[] buffer = buffers[ply];
+
+		if(buffer == null || buffer.length < state.getLineCount())
+		{
+			buffer = new int[state.getLineCount()];
+			buffers[ply] = buffer;
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Aborts the search if the time or node limit has been reached
+	 */
+	private void checkLimits()
+	{
+		if(stopRequested || nodes >= nodeLimit || System.currentTimeMillis() >= deadline)
+		{
+			aborted = true;
+		}
+	}
+}
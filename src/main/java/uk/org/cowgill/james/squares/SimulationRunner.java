@@ -0,0 +1,397 @@
+package uk.org.cowgill.james.squares;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Plays many games between two strategies without any user interface
+ *
+ * Games are shared between a pool of worker threads. Each worker reuses one
+ * GameState and one instance of each strategy for all its games. Strategy A
+ * is always player 1, and the two strategies take turns to start.
+ *
+ * As in GameController, a tied game is won by the player who went second.
+ *
+ * Strategies:
+ * - random: any random move
+ * - greedy: takes squares when it can, otherwise a random safe move, otherwise a random move
+ * - alphabeta[:nodes]: SearchEngine with a node limit per move
+ * - mcts[:playouts]: MonteCarloEngine with a playout limit per move
+ *
+ * Usage: SimulationRunner strategyA strategyB [games] [size] [threads]
+ *
+ * @author James
+ */
+public class SimulationRunner
+{
+	private static final int DEFAULT_GAMES = 1000;
+	private static final int DEFAULT_NODES = 10000;
+	private static final int DEFAULT_PLAYOUTS = 1000;
+
+	//Names of the strategies (see createStrategy)
+	private static final String[] STRATEGY_TYPES = { "random", "greedy", "alphabeta", "mcts" };
+
+	//Memory used by each engine
+	private static final long ENGINE_MEMORY = 16L << 20;
+
+	private final String strategyA;
+	private final String strategyB;
+	private final int size;
+	private final int games;
+	private final AtomicInteger nextGame = new AtomicInteger();
+
+	//Results (indexed by strategy - 0 for A, 1 for B)
+	private final long[] wins = new long[2];
+	private final long[] totalScore = new long[2];
+	private long firstPlayerWins;
+	private long secondPlayerWins;
+	private long ties;
+
+	/**
+	 * Number of games with each margin (strategy A's score - strategy B's score + size * size)
+	 */
+	private final long[] margins;
+
+	/**
+	 * Creates a new runner
+	 *
+	 * @param strategyA name of the strategy for player 1
+	 * @param strategyB name of the strategy for player 2
+	 * @param size board size
+	 * @param games number of games to play
+	 */
+	public SimulationRunner(String strategyA, String strategyB, int size, int games)
+	{
+		checkStrategy(strategyA);
+		checkStrategy(strategyB);
+
+		this.strategyA = strategyA;
+		this.strategyB = strategyB;
+		this.size = size;
+		this.games = games;
+		this.margins = new long[2 * size * size + 1];
+	}
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		if(args.length < 2)
+		{
+			System.err.println("Usage: SimulationRunner strategyA strategyB [games] [size] [threads]");
+			System.err.println("Strategies: random, greedy, alphabeta[:nodes], mcts[:playouts]");
+			System.exit(1);
+		}
+
+		int games = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_GAMES;
+		int size = (args.length > 3) ? Integer.parseInt(args[3]) : GameController.DEFAULT_BOARD_SIZE;
+		int threads = (args.length > 4) ? Integer.parseInt(args[4]) :
+				Runtime.getRuntime().availableProcessors();
+
+		SimulationRunner runner = new SimulationRunner(args[0], args[1], size, games);
+
+		long start = System.currentTimeMillis();
+		runner.run(threads);
+		long time = Math.max(1, System.currentTimeMillis() - start);
+
+		System.out.printf("%d games on %dx%d in %d ms using %d threads (%.1f games/sec)%n",
+				games, size, size, time, threads, games * 1000.0 / time);
+		runner.printResults();
+	}
+
+	/**
+	 * Plays all the games
+	 *
+	 * @param threads number of worker threads
+	 */
+	public void run(int threads) throws InterruptedException
+	{
+		Thread[] workers = new Thread[threads];
+
+		for(int i = 0; i < threads; i++)
+		{
+			final int seed = i;
+
+			workers[i] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					playGames(seed);
+				}
+			}, "SimulationRunner Worker " + i);
+
+			workers[i].start();
+		}
+
+		for(Thread worker : workers)
+		{
+			worker.join();
+		}
+	}
+
+	/**
+	 * Prints the results of the games
+	 */
+	public void printResults()
+	{
+		long played = wins[0] + wins[1];
+
+		System.out.printf("A (%s): %d wins (%.1f%%), average score %.2f%n", strategyA,
+				wins[0], 100.0 * wins[0] / played, (double) totalScore[0] / played);
+		System.out.printf("B (%s): %d wins (%.1f%%), average score %.2f%n", strategyB,
+				wins[1], 100.0 * wins[1] / played, (double) totalScore[1] / played);
+		System.out.printf("First player wins: %d, second player wins: %d (%d of them tied)%n",
+				firstPlayerWins, secondPlayerWins, ties);
+
+		System.out.println("Margins (A - B):");
+		for(int i = 0; i < margins.length; i++)
+		{
+			if(margins[i] != 0)
+			{
+				System.out.printf("%4d: %d%n", i - size * size, margins[i]);
+			}
+		}
+	}
+
+	/**
+	 * Plays games until there are none left (run by each worker)
+	 *
+	 * @param seed random number seed for this worker
+	 */
+	private void playGames(int seed)
+	{
+		Strategy[] strategies = { createStrategy(strategyA, seed), createStrategy(strategyB, seed) };
+		GameState state = new GameState(size, true);
+
+		//Local results
+		long[] localWins = new long[2];
+		long[] localScore = new long[2];
+		long[] localMargins = new long[margins.length];
+		long localFirstWins = 0;
+		long localTies = 0;
+
+		for(int game = nextGame.getAndIncrement(); game < games; game = nextGame.getAndIncrement())
+		{
+			//Alternate who starts
+			boolean player1First = (game & 1) == 0;
+			state.reset(player1First);
+
+			while(!state.isComplete())
+			{
+				int player = state.isPlayer1Turn() ? 1 : 2;
+				state.move(player, strategies[player - 1].chooseMove(state));
+			}
+
+			//Tied games are won by the second player
+			int first = player1First ? 1 : 2;
+			int second = 3 - first;
+			int winner = (state.getScore(first) > state.getScore(second)) ? first : second;
+
+			localWins[winner - 1]++;
+			localScore[0] += state.getScore(1);
+			localScore[1] += state.getScore(2);
+			localMargins[state.getScore(1) - state.getScore(2) + size * size]++;
+
+			if(winner == first)
+			{
+				localFirstWins++;
+			}
+
+			if(state.getScore(1) == state.getScore(2))
+			{
+				localTies++;
+			}
+		}
+
+		//Add to the totals
+		synchronized(this)
+		{
+			for(int i = 0; i < 2; i++)
+			{
+				wins[i] += localWins[i];
+				totalScore[i] += localScore[i];
+			}
+
+			for(int i = 0; i < margins.length; i++)
+			{
+				margins[i] += localMargins[i];
+			}
+
+			firstPlayerWins += localFirstWins;
+			secondPlayerWins += localWins[0] + localWins[1] - localFirstWins;
+			ties += localTies;
+		}
+	}
+
+	/**
+	 * Throws an exception if a strategy name is not valid
+	 *
+	 * @param name name of the strategy (with optional parameter after a colon)
+	 */
+	public static void checkStrategy(String name)
+	{
+		int colon = name.indexOf(':');
+		String type = (colon < 0) ? name : name.substring(0, colon);
+
+		for(String valid : STRATEGY_TYPES)
+		{
+			if(type.equals(valid))
+			{
+				//Only the engines have parameters
+				if(colon >= 0 && (type.equals("random") || type.equals("greedy") ||
+						Integer.parseInt(name.substring(colon + 1)) <= 0))
+				{
+					throw new IllegalArgumentException("invalid strategy parameter: " + name);
+				}
+
+				return;
+			}
+		}
+
+		throw new IllegalArgumentException("unknown strategy: " + name);
+	}
+
+	/**
+	 * Creates a strategy from its name
+	 *
+	 * @param name name of the strategy (with optional parameter after a colon)
+	 * @param seed random number seed
+	 * @return the new strategy
+	 */
+	public static Strategy createStrategy(String name, long seed)
+	{
+		int colon = name.indexOf(':');
+		String type = (colon < 0) ? name : name.substring(0, colon);
+		String parameter = (colon < 0) ? null : name.substring(colon + 1);
+
+		if(type.equals("random"))
+		{
+			return new RandomStrategy(seed);
+		}
+		else if(type.equals("greedy"))
+		{
+			return new GreedyStrategy(seed);
+		}
+		else if(type.equals("alphabeta"))
+		{
+			final SearchEngine engine = new SearchEngine(ENGINE_MEMORY);
+			final int nodes = (parameter == null) ? DEFAULT_NODES : Integer.parseInt(parameter);
+
+			return new Strategy()
+			{
+				@Override
+				public int chooseMove(GameState state)
+				{
+					return engine.search(state, 0, nodes);
+				}
+			};
+		}
+		else if(type.equals("mcts"))
+		{
+			final MonteCarloEngine engine = new MonteCarloEngine(ENGINE_MEMORY);
+			final int playouts = (parameter == null) ? DEFAULT_PLAYOUTS : Integer.parseInt(parameter);
+
+			return new Strategy()
+			{
+				@Override
+				public int chooseMove(GameState state)
+				{
+					return engine.search(state, 0, playouts);
+				}
+			};
+		}
+
+		throw new IllegalArgumentException("unknown strategy: " + name);
+	}
+
+	/**
+	 * Plays any random move
+	 */
+	private static class RandomStrategy implements Strategy
+	{
+		protected final Random random;
+		private int[] moves = new int[0];
+
+		public RandomStrategy(long seed)
+		{
+			random = new Random(seed);
+		}
+
+		@Override
+		public int chooseMove(GameState state)
+		{
+			int[] buffer = getBuffer(state);
+			return buffer[random.nextInt(state.getMoves(buffer))];
+		}
+
+		/**
+		 * Returns the move buffer, allocating it if needed
+		 */
+		protected int[] getBuffer(GameState state)
+		{
+			if(moves.length < state.getLineCount())
+			{
+				moves = new int[state.getLineCount()];
+			}
+
+			return moves;
+		}
+	}
+
+	/**
+	 * Takes squares when possible, then plays safe moves
+	 */
+	private static class GreedyStrategy extends RandomStrategy
+	{
+		public GreedyStrategy(long seed)
+		{
+			super(seed);
+		}
+
+		@Override
+		public int chooseMove(GameState state)
+		{
+			int[] buffer = getBuffer(state);
+
+			if(state.getCapturableCount() != 0)
+			{
+				int count = state.getMoves(buffer);
+
+				for(int i = 0; i < count; i++)
+				{
+					if(completesSquare(state, buffer[i]))
+					{
+						return buffer[i];
+					}
+				}
+			}
+
+			if(state.hasSafeMove())
+			{
+				return buffer[random.nextInt(state.getSafeMoves(buffer))];
+			}
+
+			return super.chooseMove(state);
+		}
+
+		/**
+		 * Returns true if a move completes a square
+		 */
+		private static boolean completesSquare(GameState state, int move)
+		{
+			int x = GameState.getMoveX(move);
+			int y = GameState.getMoveY(move);
+			int size = state.getSize();
+
+			if(GameState.isMoveLeft(move))
+			{
+				return (x != 0 && state.getSideCount(x - 1, y) == 3) ||
+						(x != size && state.getSideCount(x, y) == 3);
+			}
+			else
+			{
+				return (y != 0 && state.getSideCount(x, y - 1) == 3) ||
+						(y != size && state.getSideCount(x, y) == 3);
+			}
+		}
+	}
+}
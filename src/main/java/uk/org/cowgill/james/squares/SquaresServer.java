@@ -0,0 +1,755 @@
+package uk.org.cowgill.james.squares;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A headless server which pairs up clients and hosts their games
+ *
+ * Clients connect to the server as they would connect to another player
+ * (without hosting). The server is the master of each connection and speaks
+ * for the client's opponent, so every client is player 2 in its own view and
+ * the opponent is player 1. Messages are checked against the server's own
+ * GameState before being passed on, so a client cannot make moves or claim
+ * wins which the server does not agree with.
+ *
+ * The server replies to each client's INIT with the lower of the two
+ * protocol versions, so older clients (which need the versions to be equal)
+ * can still connect, and clients with different versions can be paired.
+ * The server does not keep games for clients which disconnect, so it never
+ * sends a SESSION message and clients do not try to resume games.
+ *
+ * Connections are run by a MessageReactor. Clients are paired in the order
+ * their INIT messages arrive. If either client of a match disconnects or
+ * sends a bad message, the other client is disconnected.
+ *
+ * The server answers PING messages itself, so a client cannot tell from its
+ * own pings whether its opponent is still there. Instead, a timer thread
+ * ends any match where a client which sends PING messages has not sent
+ * anything for GameController.MAX_TIMEOUT milliseconds. Clients using older
+ * versions do not send PING messages and do not time out.
+ *
+ * Usage: SquaresServer [port] [threads]
+ *
+ * @author James
+ */
+public class SquaresServer
+{
+	/**
+	 * The port used when none is given
+	 */
+	public static final int DEFAULT_PORT = 1503;
+
+	private final MessageReactor reactor;
+	private final Random random = new Random();
+
+	/**
+	 * Thread which checks the matches for clients which have timed out
+	 */
+	private final ScheduledExecutorService timer;
+
+	/**
+	 * Client waiting for an opponent (or null)
+	 */
+	private Client waiting;
+
+	/**
+	 * Matches which have not ended
+	 */
+	private final Set<Match> matches = ConcurrentHashMap.newKeySet();
+
+	//Statistics
+	private final AtomicInteger gameCount = new AtomicInteger();
+
+	/**
+	 * Creates a new server
+	 *
+	 * @param threads number of reactor threads used for the connections
+	 */
+	public SquaresServer(int threads) throws IOException
+	{
+		reactor = new MessageReactor(threads);
+
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "SquaresServer Timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		timer.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				checkTimeouts();
+			}
+		}, GameController.PING_INTERVAL, GameController.PING_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+		int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		listener.socket().bind(new InetSocketAddress(port));
+
+		System.out.println("Squares server listening on port " + port);
+		new SquaresServer(threads).run(listener);
+	}
+
+	/**
+	 * Accepts clients until the listener is closed
+	 *
+	 * @param listener channel to accept clients from (in blocking mode)
+	 */
+	public void run(ServerSocketChannel listener) throws IOException
+	{
+		try
+		{
+			for(;;)
+			{
+				accept(listener.accept());
+			}
+		}
+		finally
+		{
+			timer.shutdown();
+			reactor.shutdown();
+		}
+	}
+
+	/**
+	 * Adds a connected client to the server
+	 *
+	 * @param channel the client's channel
+	 */
+	public void accept(SocketChannel channel) throws IOException
+	{
+		new Client(channel);
+	}
+
+	/**
+	 * Returns the number of matches in progress
+	 */
+	public int getMatchCount()
+	{
+		return matches.size();
+	}
+
+	/**
+	 * Returns the number of games which have been finished
+	 */
+	public int getGameCount()
+	{
+		return gameCount.get();
+	}
+
+	/**
+	 * Returns the number of open client connections
+	 */
+	public int getConnectionCount()
+	{
+		return reactor.getConnectionCount();
+	}
+
+	/**
+	 * Pairs a client with the waiting client or makes it wait
+	 *
+	 * @param client client which has sent its INIT message
+	 */
+	private synchronized void pair(Client client)
+	{
+		if(waiting == null)
+		{
+			waiting = client;
+		}
+		else
+		{
+			Client other = waiting;
+			waiting = null;
+
+			new Match(other, client, random.nextBoolean());
+		}
+	}
+
+	/**
+	 * Removes a client from the waiting slot (if it is there)
+	 */
+	private synchronized void unpair(Client client)
+	{
+		if(waiting == client)
+		{
+			waiting = null;
+		}
+	}
+
+	/**
+	 * Ends the matches with clients which have timed out (run by the timer)
+	 */
+	private void checkTimeouts()
+	{
+		long now = System.nanoTime();
+
+		for(Match match : matches)
+		{
+			match.checkTimeout(now);
+		}
+	}
+
+	/**
+	 * A connection to one client
+	 *
+	 * Fields are only set after the constructor since events can be raised
+	 * before it returns.
+	 */
+	private class Client extends MessageConnection
+	{
+		/**
+		 * Name sent in the client's INIT message (null until it arrives)
+		 */
+		private byte[] name;
+
+		/**
+		 * Protocol version used with this client
+		 */
+		private int version;
+
+		/**
+		 * The match this client is in (null until paired)
+		 */
+		private volatile Match match;
+
+		/**
+		 * This client's player number in the match's GameState
+		 */
+		private int player;
+
+		/**
+		 * Time the last message was received (from System.nanoTime)
+		 */
+		private volatile long lastReceived;
+
+		public Client(SocketChannel channel) throws IOException
+		{
+			super(channel, reactor);
+		}
+
+		@Override
+		protected void eventError(Exception e)
+		{
+			System.err.println("Client error: " + e);
+
+			if(!(e instanceof IOException))
+			{
+				//Tell the client (it may have sent a bad message)
+				send(ByteBuffer.wrap(new byte[] { GameController.CMD_ERROR }));
+			}
+
+			disconnected();
+		}
+
+		@Override
+		protected void eventRead(ByteBuffer buffer) throws Exception
+		{
+			lastReceived = System.nanoTime();
+
+			//Ignore empty messages
+			if(buffer.remaining() == 0)
+			{
+				return;
+			}
+
+			if(name == null)
+			{
+				readInit(buffer);
+			}
+			else if(match == null)
+			{
+				throw new GameControllerException("Message received before the match started");
+			}
+			else
+			{
+				match.read(this, buffer);
+			}
+		}
+
+		@Override
+		protected void eventClosed() throws Exception
+		{
+			disconnected();
+		}
+
+		/**
+		 * Reads the client's INIT message
+		 */
+		private void readInit(ByteBuffer buffer) throws GameControllerException
+		{
+			if(buffer.get() != GameController.CMD_INIT)
+			{
+				throw new GameControllerException("Unexpected INIT message received");
+			}
+
+			int clientVersion = buffer.getInt();
+			if(clientVersion < GameController.MIN_PROTOCOL_VERSION)
+			{
+				throw new GameControllerException("The client is using an old Squares version");
+			}
+
+			version = Math.min(clientVersion, GameController.PROTOCOL_VERSION);
+
+			//The server is always the master
+			if(buffer.getInt() != GameController.NOT_MASTER)
+			{
+				throw new GameControllerException("Failed to select master computer");
+			}
+
+			//Name is passed on to the opponent without decoding
+			name = new byte[buffer.remaining()];
+			buffer.get(name);
+
+			pair(this);
+		}
+
+		/**
+		 * Sends a message to the client, ignoring errors
+		 *
+		 * @param buffer message to send
+		 */
+		public void send(ByteBuffer buffer)
+		{
+			try
+			{
+				sendMsg(buffer);
+			}
+			catch(IOException e)
+			{
+				//Connection has gone or the client is not reading its messages
+				disconnected();
+			}
+		}
+
+		/**
+		 * Closes the connection, ignoring errors
+		 */
+		public void disconnect()
+		{
+			try
+			{
+				close();
+			}
+			catch(IOException e)
+			{
+				//Ignore
+			}
+		}
+
+		/**
+		 * Called when the connection is lost
+		 */
+		private void disconnected()
+		{
+			unpair(this);
+
+			if(match != null)
+			{
+				match.end();
+			}
+		}
+	}
+
+	/**
+	 * A series of games between two clients
+	 *
+	 * Client 1 is player 1 in the server's GameState. In each client's view,
+	 * player 1 is the opponent, so PLAY messages are translated when they are
+	 * passed on (the first player flag is inverted and the scores swapped).
+	 */
+	private class Match
+	{
+		private final Client[] clients;
+
+		/**
+		 * Player who goes first in the next game (or current game)
+		 */
+		private int firstPlayer;
+
+		/**
+		 * Games won by each player
+		 */
+		private final int[] score = new int[2];
+
+		/**
+		 * Board size requested by each player for the next game (0 if none)
+		 */
+		private final int[] requestedSize = new int[2];
+
+		/**
+		 * The current game (or null)
+		 */
+		private GameState state;
+
+		private boolean ended;
+
+		/**
+		 * Creates a match and sends INIT messages to both clients
+		 *
+		 * @param client1 first client (player 1)
+		 * @param client2 second client (player 2)
+		 * @param player1First true if player 1 goes first in the first game
+		 */
+		public Match(Client client1, Client client2, boolean player1First)
+		{
+			clients = new Client[] { client1, client2 };
+			firstPlayer = player1First ? 1 : 2;
+
+			synchronized(this)
+			{
+				for(int player = 1; player <= 2; player++)
+				{
+					Client client = clients[player - 1];
+					byte[] otherName = clients[2 - player].name;
+
+					client.player = player;
+					client.match = this;
+
+					//Clients only start sending PING messages after the INIT message
+					client.lastReceived = System.nanoTime();
+
+					ByteBuffer buf = ByteBuffer.allocate(9 + otherName.length);
+					buf.put(GameController.CMD_INIT);
+					buf.putInt(client.version);
+					buf.putInt(firstPlayer == player ? GameController.MASTER_YOU_FIRST : GameController.MASTER_ME_FIRST);
+					buf.put(otherName);
+					buf.flip();
+
+					client.send(buf);
+
+					if(client.version >= GameController.VARINT_FRAMING_VERSION)
+					{
+						client.setVarintFraming();
+					}
+				}
+
+				//Only checked for timeouts once the clients have been set up
+				// (the match has already ended if sending failed)
+				if(!ended)
+				{
+					matches.add(this);
+				}
+			}
+		}
+
+		/**
+		 * Handles a message from one of the clients
+		 *
+		 * @param client client which sent the message
+		 * @param buffer the message
+		 */
+		public synchronized void read(Client client, ByteBuffer buffer) throws GameControllerException
+		{
+			if(ended)
+			{
+				return;
+			}
+
+			int player = client.player;
+			Client other = clients[2 - player];
+
+			buffer.mark();
+
+			try
+			{
+				switch(buffer.get())
+				{
+					case GameController.CMD_PLAY:
+						readPlay(player, buffer);
+						break;
+
+					case GameController.CMD_MOVE:
+						if(state == null)
+						{
+							throw new GameControllerException("Unexpected MOVE message received");
+						}
+
+						boolean isLeft = buffer.get() == 1;
+						int x = buffer.getInt();
+						int y = buffer.getInt();
+
+						if(state.move(player, x, y, isLeft) == GameState.MoveResult.Illegal)
+						{
+							throw new GameControllerException("Data Inconsistency (hacking attempt?)");
+						}
+
+						buffer.reset();
+						other.send(buffer);
+						checkComplete();
+						break;
+
+					case GameController.CMD_MOVES:
+						readMoves(player, buffer);
+						break;
+
+					case GameController.CMD_WIN:
+						if(state == null || !state.canWinNow(player))
+						{
+							throw new GameControllerException("Data Inconsistency (hacking attempt?)");
+						}
+
+						buffer.reset();
+						other.send(buffer);
+						gameEnded(player);
+						break;
+
+					case GameController.CMD_SURRENDER:
+						//Ignored when no game is in progress (as GameController does)
+						if(state != null)
+						{
+							buffer.reset();
+							other.send(buffer);
+							gameEnded(3 - player);
+						}
+
+						break;
+
+					case GameController.CMD_CHAT:
+						buffer.reset();
+						other.send(buffer);
+						break;
+
+					case GameController.CMD_PING:
+						if(client.version < GameController.PING_VERSION)
+						{
+							throw new GameControllerException("invalid message received");
+						}
+
+						//The server answers pings itself (the round trip is to the server)
+						ByteBuffer pong = ByteBuffer.allocate(9);
+						pong.put(GameController.CMD_PONG);
+						pong.putLong(buffer.getLong());
+						pong.flip();
+
+						client.send(pong);
+						break;
+
+					case GameController.CMD_SESSION:
+						if(client.version < GameController.RESUME_VERSION)
+						{
+							throw new GameControllerException("invalid message received");
+						}
+
+						//Ignored (games cannot be resumed through the server)
+						break;
+
+					case GameController.CMD_ERROR:
+						//Pass the error on and end the match
+						buffer.reset();
+						other.send(buffer);
+						end();
+						break;
+
+					default:
+						throw new GameControllerException("invalid message received");
+				}
+			}
+			catch(BufferUnderflowException e)
+			{
+				throw new GameControllerException("Bad message from other controller", e);
+			}
+		}
+
+		/**
+		 * Handles a MOVES message
+		 *
+		 * The message is passed on unchanged if the other client understands
+		 * MOVES messages, otherwise each move is sent in a MOVE message.
+		 */
+		private void readMoves(int player, ByteBuffer buffer) throws GameControllerException
+		{
+			if(state == null || clients[player - 1].version < GameController.MOVES_VERSION ||
+				state.getSize() > GameController.MAX_PACKED_BOARD_SIZE)
+			{
+				throw new GameControllerException("Unexpected MOVES message received");
+			}
+
+			if(!buffer.hasRemaining() || buffer.remaining() % 2 != 0)
+			{
+				throw new GameControllerException("Bad message from other controller");
+			}
+
+			//Check the moves (the game state rejects moves after the turn has ended)
+			int start = buffer.position();
+			while(buffer.hasRemaining())
+			{
+				int line = buffer.getShort() & 0xFFFF;
+				if(line >= state.getLineCount() || state.move(player, state.getLineX(line),
+						state.getLineY(line), state.isLeftLine(line)) == GameState.MoveResult.Illegal)
+				{
+					throw new GameControllerException("Data Inconsistency (hacking attempt?)");
+				}
+			}
+
+			Client other = clients[2 - player];
+			if(other.version >= GameController.MOVES_VERSION)
+			{
+				buffer.reset();
+				other.send(buffer);
+			}
+			else
+			{
+				buffer.position(start);
+				while(buffer.hasRemaining())
+				{
+					int line = buffer.getShort() & 0xFFFF;
+
+					ByteBuffer buf = ByteBuffer.allocate(10);
+					buf.put(GameController.CMD_MOVE);
+					buf.put((byte) (state.isLeftLine(line) ? 1 : 0));
+					buf.putInt(state.getLineX(line));
+					buf.putInt(state.getLineY(line));
+					buf.flip();
+
+					other.send(buf);
+				}
+			}
+
+			checkComplete();
+		}
+
+		/**
+		 * Handles a PLAY message
+		 *
+		 * The board size of the first request is used. It is put into the
+		 * second request so that both clients agree on it, since both
+		 * clients think they are not the master.
+		 */
+		private void readPlay(int player, ByteBuffer buffer) throws GameControllerException
+		{
+			//In the client's view, player 1 is the opponent
+			boolean opponentFirst = (buffer.get() != 0);
+			int opponentScore = buffer.getInt();
+			int clientScore = buffer.getInt();
+			int size = buffer.getInt();
+
+			if(state != null || requestedSize[player - 1] != 0)
+			{
+				throw new GameControllerException("Unexpected PLAY message received");
+			}
+
+			if(opponentFirst != (firstPlayer != player) || opponentScore != score[2 - player] ||
+				clientScore != score[player - 1] || size <= 0 || size > GameController.MAX_BOARD_SIZE)
+			{
+				throw new GameControllerException("Data Inconsistency (hacking attempt?)");
+			}
+
+			int otherSize = requestedSize[2 - player];
+			if(otherSize != 0)
+			{
+				size = otherSize;
+			}
+
+			//Pass on in the other client's view
+			ByteBuffer buf = ByteBuffer.allocate(14);
+			buf.put(GameController.CMD_PLAY);
+			buf.put((byte) (opponentFirst ? 0 : 1));
+			buf.putInt(clientScore);
+			buf.putInt(opponentScore);
+			buf.putInt(size);
+			buf.flip();
+
+			clients[2 - player].send(buf);
+
+			if(otherSize == 0)
+			{
+				requestedSize[player - 1] = size;
+			}
+			else
+			{
+				//Both have requested the game
+				requestedSize[0] = 0;
+				requestedSize[1] = 0;
+				state = new GameState(size, firstPlayer == 1);
+			}
+		}
+
+		/**
+		 * Ends the current game if it is complete
+		 *
+		 * Both clients end the game themselves when it is complete.
+		 */
+		private void checkComplete()
+		{
+			if(state.isComplete())
+			{
+				int secondPlayer = 3 - firstPlayer;
+				gameEnded(state.getScore(firstPlayer) > state.getScore(secondPlayer) ?
+						firstPlayer : secondPlayer);
+			}
+		}
+
+		/**
+		 * Ends the current game
+		 *
+		 * @param winner player who won
+		 */
+		private void gameEnded(int winner)
+		{
+			score[winner - 1]++;
+			firstPlayer = 3 - firstPlayer;
+			state = null;
+			gameCount.incrementAndGet();
+		}
+
+		/**
+		 * Ends the match if a client which sends PING messages has timed out
+		 *
+		 * @param now the current time (from System.nanoTime)
+		 */
+		public void checkTimeout(long now)
+		{
+			for(Client client : clients)
+			{
+				if(client.version >= GameController.PING_VERSION &&
+					now - client.lastReceived > GameController.MAX_TIMEOUT * 1000000L)
+				{
+					System.err.println("Client timed out");
+					end();
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Ends the match and disconnects both clients
+		 */
+		public synchronized void end()
+		{
+			if(!ended)
+			{
+				ended = true;
+				matches.remove(this);
+
+				//The other client sees a normal close (and wins the current game)
+				clients[0].disconnect();
+				clients[1].disconnect();
+			}
+		}
+	}
+}
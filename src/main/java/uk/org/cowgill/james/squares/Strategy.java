@@ -0,0 +1,22 @@
+package uk.org.cowgill.james.squares;
+
+/**
+ * A way of choosing moves in a game of squares
+ *
+ * Strategies may keep state between moves (such as search tables), so each
+ * thread must use its own instance.
+ *
+ * @author James
+ */
+public interface Strategy
+{
+	/**
+	 * Chooses a move for the player whose turn it is
+	 *
+	 * The state must be restored before returning if it is modified.
+	 *
+	 * @param state current state of the game (which is not complete)
+	 * @return the move (packed using GameState.encodeMove)
+	 */
+	int chooseMove(GameState state);
+}
@@ -14,6 +14,14 @@ import javax.swing.SwingUtilities;
  */
 public abstract class SwingMessageConnection extends MessageConnection
 {
+	/**
+	 * Raises eventSwingRead (one is enough since the reader thread waits for it)
+	 * 
+	 * This is only used by the reader thread, and is created by it since
+	 * messages can arrive before the constructor returns.
+	 */
+	private SwingReader reader;
+	
 	/**
 	 * Creates a new message connection using the given socket and callback interface
 	 *
@@ -77,40 +85,36 @@ public abstract class SwingMessageConnection extends MessageConnection
 	}
 	
 	@Override
-	protected void eventRead(final ByteBuffer buffer) throws Exception
+	protected void eventRead(ByteBuffer buffer) throws Exception
 	{
+		//Forward
+		if(reader == null)
+		{
+			reader = new SwingReader();
+		}
+		
+		reader.buffer = buffer;
+		
 		try
 		{
-			//Forward
-			SwingUtilities.invokeAndWait(new Runnable()
-			{
-				@Override
-				public void run()
-				{
-					try
-					{
-						eventSwingRead(buffer);
-					}
-					catch (Exception e)
-					{
-						//Wrap exception
-						throw new SwingInvocationException(e);
-					}
-				}
-			});
+			SwingUtilities.invokeAndWait(reader);
 		}
 		catch(InvocationTargetException e)
 		{
-			//If invocation, rethrow
-			if(e.getTargetException() instanceof SwingInvocationException)
-			{
-				throw ((SwingInvocationException) e.getTargetException()).getException();
-			}
-			else
-			{
-				//Must be an error
-				throw (Error) e.getTargetException();
-			}
+			//Must be an error (exceptions are stored by the reader)
+			throw (Error) e.getTargetException();
+		}
+		finally
+		{
+			reader.buffer = null;
+		}
+		
+		//Rethrow any exception
+		Exception e = reader.exception;
+		if(e != null)
+		{
+			reader.exception = null;
+			throw e;
 		}
 	}
 	
@@ -152,6 +156,31 @@ public abstract class SwingMessageConnection extends MessageConnection
 		}
 	}
 	
+	/**
+	 * Runnable which passes a message to eventSwingRead on the swing Event Thread
+	 * 
+	 * @author James
+	 */
+	private final class SwingReader implements Runnable
+	{
+		private ByteBuffer buffer;
+		private Exception exception;
+		
+		@Override
+		public void run()
+		{
+			try
+			{
+				eventSwingRead(buffer);
+			}
+			catch (Exception e)
+			{
+				//Stored for the reader thread
+				exception = e;
+			}
+		}
+	}
+	
 	/**
 	 * Private class used to wrap exceptions which cannot be throw inside the Runnable interface
 	 * 
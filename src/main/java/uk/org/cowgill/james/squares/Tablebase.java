@@ -0,0 +1,300 @@
+package uk.org.cowgill.james.squares;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A file of solved endgame positions which is read through a memory mapping
+ *
+ * Positions are stored by symmetry-canonical hash (see
+ * GameState.getCanonicalHash()) with the exact value of the position and
+ * the best line on the canonical board. The file is an open addressing hash
+ * table so it can be used directly from the mapping: no part of it is read
+ * onto the heap, and processes using the same file share the page cache.
+ *
+ * File format (big endian):
+ * - int: magic number (MAGIC)
+ * - int: format version (VERSION)
+ * - int: board size
+ * - int: maximum number of free lines in any position
+ * - int: number of slots (a power of 2)
+ * - int: number of entries
+ * - slots: long canonical hash (0 if empty), int best canonical line, int value
+ *
+ * Tablebases are created using TablebaseGenerator.
+ *
+ * @author James
+ */
+public class Tablebase
+{
+	/**
+	 * Magic number at the start of tablebase files ("SQTB")
+	 */
+	public static final int MAGIC = 0x53515442;
+
+	/**
+	 * The current version of the file format
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * Returned by probe when a position is not in the tablebase
+	 */
+	public static final long NO_ENTRY = Long.MIN_VALUE;
+
+	//File layout
+	private static final int HEADER_SIZE = 24;
+	private static final int SLOT_SIZE = 16;
+
+	private final ByteBuffer buffer;
+	private final int size;
+	private final int maxFreeLines;
+	private final int mask;
+	private final int entryCount;
+
+	/**
+	 * Creates a tablebase from a buffer containing a tablebase file
+	 *
+	 * @param buffer buffer containing the file
+	 * @throws IOException if the file is not a valid tablebase
+	 */
+	public Tablebase(ByteBuffer buffer) throws IOException
+	{
+		if(buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+		{
+			throw new IOException("not a tablebase file");
+		}
+
+		if(buffer.getInt(4) != VERSION)
+		{
+			throw new IOException("unsupported tablebase version " + buffer.getInt(4));
+		}
+
+		int slots = buffer.getInt(16);
+		if(slots <= 0 || Integer.bitCount(slots) != 1 ||
+				buffer.capacity() < HEADER_SIZE + (long) slots * SLOT_SIZE)
+		{
+			throw new IOException("tablebase file is corrupt");
+		}
+
+		this.buffer = buffer;
+		this.size = buffer.getInt(8);
+		this.maxFreeLines = buffer.getInt(12);
+		this.mask = slots - 1;
+		this.entryCount = buffer.getInt(20);
+	}
+
+	/**
+	 * Opens a tablebase file
+	 *
+	 * The file is mapped into memory (read only) and can be closed straight away.
+	 *
+	 * @param file file to open
+	 * @return the tablebase
+	 * @throws IOException if the file cannot be read or is not a valid tablebase
+	 */
+	public static Tablebase open(File file) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			if(channel.size() > Integer.MAX_VALUE)
+			{
+				throw new IOException("tablebase file is too large");
+			}
+
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new Tablebase(buffer);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes a tablebase file
+	 *
+	 * Entries are created using makeEntry. If a hash appears more than once,
+	 * the last entry is used.
+	 *
+	 * @param file file to write
+	 * @param size board size
+	 * @param maxFreeLines maximum number of free lines in any position
+	 * @param keys canonical hashes of the positions
+	 * @param entries entries for each position
+	 * @param count number of positions
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(File file, int size, int maxFreeLines,
+			long[] keys, long[] entries, int count) throws IOException
+	{
+		//Use a load factor of at most 1/2
+		int slots = Integer.highestOneBit(Math.max(1, count * 2 - 1)) << 1;
+		if(HEADER_SIZE + (long) slots * SLOT_SIZE > Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("too many entries for one tablebase file");
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + slots * SLOT_SIZE);
+		int mask = slots - 1;
+		int used = 0;
+
+		for(int i = 0; i < count; i++)
+		{
+			//The empty slot marker cannot be stored
+			if(keys[i] == 0)
+			{
+				continue;
+			}
+
+			int slot = (int) keys[i] & mask;
+			for(;;)
+			{
+				int offset = HEADER_SIZE + slot * SLOT_SIZE;
+				long existing = buffer.getLong(offset);
+
+				if(existing == 0 || existing == keys[i])
+				{
+					if(existing == 0)
+					{
+						used++;
+					}
+
+					buffer.putLong(offset, keys[i]);
+					buffer.putInt(offset + 8, getLine(entries[i]));
+					buffer.putInt(offset + 12, getValue(entries[i]));
+					break;
+				}
+
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(8, size);
+		buffer.putInt(12, maxFreeLines);
+		buffer.putInt(16, slots);
+		buffer.putInt(20, used);
+
+		//Write file
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try
+		{
+			raf.setLength(0);
+			raf.write(buffer.array());
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns the board size the tablebase is for
+	 */
+	public int getBoardSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the maximum number of free lines in any position in the tablebase
+	 */
+	public int getMaxFreeLines()
+	{
+		return maxFreeLines;
+	}
+
+	/**
+	 * Returns the number of positions in the tablebase
+	 */
+	public int getEntryCount()
+	{
+		return entryCount;
+	}
+
+	/**
+	 * Looks up a position
+	 *
+	 * @param state position to look up
+	 * @return the entry or NO_ENTRY
+	 */
+	public long probe(GameState state)
+	{
+		if(state.getSize() != size || state.getFreeLineCount() > maxFreeLines)
+		{
+			return NO_ENTRY;
+		}
+
+		return probe(state.getCanonicalHash());
+	}
+
+	/**
+	 * Looks up a position by its canonical hash
+	 *
+	 * @param key canonical hash of the position
+	 * @return the entry or NO_ENTRY
+	 */
+	public long probe(long key)
+	{
+		int slot = (int) key & mask;
+
+		for(;;)
+		{
+			int offset = HEADER_SIZE + slot * SLOT_SIZE;
+			long existing = buffer.getLong(offset);
+
+			if(existing == key)
+			{
+				return makeEntry(buffer.getInt(offset + 12), buffer.getInt(offset + 8));
+			}
+			else if(existing == 0)
+			{
+				return NO_ENTRY;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/**
+	 * Creates an entry
+	 *
+	 * @param value exact value of the position
+	 * @param line best line on the canonical board (see GameState.toCanonicalLine)
+	 */
+	public static long makeEntry(int value, int line)
+	{
+		return ((long) value << 32) | (line & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Returns the value stored in an entry
+	 *
+	 * @param entry entry returned by probe
+	 */
+	public static int getValue(long entry)
+	{
+		return (int) (entry >> 32);
+	}
+
+	/**
+	 * Returns the best line (on the canonical board) stored in an entry
+	 *
+	 * @param entry entry returned by probe
+	 * @see GameState#fromCanonicalLine(int)
+	 */
+	public static int getLine(long entry)
+	{
+		return (int) entry;
+	}
+}
@@ -0,0 +1,203 @@
+package uk.org.cowgill.james.squares;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Creates tablebase files by solving sampled endgame positions
+ *
+ * Positions are sampled by playing random games (preferring safe moves)
+ * until the given number of free lines are left. Each sample is solved,
+ * and it and every position along its best line are stored. Samples are
+ * solved in parallel, one solver per thread.
+ *
+ * Usage: TablebaseGenerator file [size] [maxFreeLines] [samples] [threads]
+ *
+ * @author James
+ */
+public class TablebaseGenerator
+{
+	private static final int DEFAULT_FREE_LINES = 24;
+	private static final int DEFAULT_SAMPLES = 2000;
+
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		if(args.length == 0)
+		{
+			System.err.println("Usage: TablebaseGenerator file [size] [maxFreeLines] [samples] [threads]");
+			System.exit(1);
+		}
+
+		File file = new File(args[0]);
+		int size = (args.length > 1) ? Integer.parseInt(args[1]) : GameController.DEFAULT_BOARD_SIZE;
+		int freeLines = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_FREE_LINES;
+		int samples = (args.length > 3) ? Integer.parseInt(args[3]) : DEFAULT_SAMPLES;
+		int threads = (args.length > 4) ? Integer.parseInt(args[4]) :
+				Runtime.getRuntime().availableProcessors();
+
+		long start = System.currentTimeMillis();
+		Result result = generate(size, freeLines, samples, threads);
+		long time = Math.max(1, System.currentTimeMillis() - start);
+
+		Tablebase.write(file, size, freeLines, result.keys, result.entries, result.count);
+
+		System.out.println("Solved " + samples + " samples (" + result.count + " positions) in " +
+				time + " ms on " + threads + " threads");
+		System.out.println("Wrote " + Tablebase.open(file).getEntryCount() + " entries to " + file);
+	}
+
+	/**
+	 * Solves sampled positions in parallel
+	 *
+	 * @param size board size
+	 * @param freeLines number of free lines in each sample
+	 * @param samples number of samples
+	 * @param threads number of threads to use
+	 * @return the solved positions
+	 */
+	public static Result generate(int size, int freeLines, int samples, int threads)
+			throws InterruptedException
+	{
+		if(freeLines > 2 * size * (size + 1))
+		{
+			throw new IllegalArgumentException("freeLines is larger than the number of lines on the board");
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+
+		try
+		{
+			//Split samples between the threads
+			for(int i = 0; i < threads; i++)
+			{
+				int count = samples / threads + ((i < samples % threads) ? 1 : 0);
+				futures.add(pool.submit(new Worker(size, freeLines, count, i)));
+			}
+
+			//Join the results
+			Result total = new Result();
+			for(Future<Result> future : futures)
+			{
+				Result result = future.get();
+
+				for(int i = 0; i < result.count; i++)
+				{
+					total.add(result.keys[i], result.entries[i]);
+				}
+			}
+
+			return total;
+		}
+		catch(ExecutionException e)
+		{
+			throw new IllegalStateException("tablebase generation failed", e.getCause());
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * A list of solved positions
+	 */
+	public static class Result
+	{
+		long[] keys = new long[1024];
+		long[] entries = new long[1024];
+		int count;
+
+		/**
+		 * Adds a solved position
+		 */
+		void add(long key, long entry)
+		{
+			if(count == keys.length)
+			{
+				long[] newKeys = new long[count * 2];
+				long[] newEntries = new long[count * 2];
+
+				System.arraycopy(keys, 0, newKeys, 0, count);
+				System.arraycopy(entries, 0, newEntries, 0, count);
+				keys = newKeys;
+				entries = newEntries;
+			}
+
+			keys[count] = key;
+			entries[count] = entry;
+			count++;
+		}
+
+		/**
+		 * Returns the number of positions
+		 */
+		public int getCount()
+		{
+			return count;
+		}
+	}
+
+	/**
+	 * Solves some of the samples on one thread
+	 */
+	private static class Worker implements Callable<Result>
+	{
+		private final int size;
+		private final int freeLines;
+		private final int samples;
+		private final Random random;
+
+		public Worker(int size, int freeLines, int samples, int seed)
+		{
+			this.size = size;
+			this.freeLines = freeLines;
+			this.samples = samples;
+			this.random = new Random(seed);
+		}
+
+		@Override
+		public Result call()
+		{
+			EndgameSolver solver = new EndgameSolver();
+			Result result = new Result();
+			int[] moves = new int[2 * size * (size + 1)];
+
+			solver.setMaxFreeLines(freeLines);
+
+			for(int i = 0; i < samples; i++)
+			{
+				GameState state = new GameState(size, random.nextBoolean());
+
+				//Play randomly until the endgame
+				while(state.getFreeLineCount() > freeLines)
+				{
+					int count = state.hasSafeMove() ? state.getSafeMoves(moves) : state.getMoves(moves);
+					state.move(state.isPlayer1Turn() ? 1 : 2, moves[random.nextInt(count)]);
+				}
+
+				//Store each position along the best line
+				while(state.getFreeLineCount() != 0)
+				{
+					int value = solver.solve(state);
+					int move = solver.getBestMove();
+					int line = state.getLineIndex(GameState.getMoveX(move), GameState.getMoveY(move),
+							GameState.isMoveLeft(move));
+
+					result.add(state.getCanonicalHash(), Tablebase.makeEntry(value, state.toCanonicalLine(line)));
+					state.move(state.isPlayer1Turn() ? 1 : 2, move);
+				}
+			}
+
+			return result;
+		}
+	}
+}
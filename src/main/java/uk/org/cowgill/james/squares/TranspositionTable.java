@@ -0,0 +1,194 @@
+package uk.org.cowgill.james.squares;
+
+/**
+ * A fixed size hash table of search results stored in primitive arrays
+ *
+ * Each entry uses two longs: the position hash and a packed data word
+ * containing the best move (27 bits), value (21 bits), depth, bound type
+ * and age. The move and value fields are large enough for every board up
+ * to GameController.MAX_BOARD_SIZE.
+ *
+ * Replacement policy: an entry for the same position is always replaced.
+ * Otherwise the existing entry is kept only if it comes from the current
+ * search and was searched to a greater depth.
+ *
+ * The table can be shared between threads without locking. The key is
+ * stored XORed with the data word, so an entry which is read while another
+ * thread is writing it fails the key check and is ignored.
+ *
+ * @author James
+ */
+public class TranspositionTable
+{
+	/**
+	 * Number of bytes used by each entry
+	 */
+	public static final int ENTRY_SIZE = 16;
+
+	/**
+	 * Returned by probe when there is no entry
+	 */
+	public static final long NO_ENTRY = 0;
+
+	/**
+	 * The largest value which can be stored (values must be between -MAX_VALUE and MAX_VALUE)
+	 */
+	public static final int MAX_VALUE = (1 << 20) - 1;
+
+	//Sizes of the packed move and value fields
+	private static final int MOVE_BITS = 27;
+	private static final int VALUE_BITS = 21;
+
+	//Bound types
+	public static final int BOUND_EXACT = 1;
+	public static final int BOUND_LOWER = 2;
+	public static final int BOUND_UPPER = 3;
+
+	private final long[] keys;
+	private final long[] data;
+	private final int mask;
+
+	private int age;
+
+	/**
+	 * Creates a new transposition table
+	 *
+	 * The number of entries is the largest power of 2 which fits in the given memory.
+	 *
+	 * @param maxBytes maximum amount of memory to use for entries
+	 */
+	public TranspositionTable(long maxBytes)
+	{
+		//Calculate size
+		long entries = Long.highestOneBit(Math.max(1, maxBytes / ENTRY_SIZE));
+		if(entries > (1 << 30))
+		{
+			entries = 1 << 30;
+		}
+
+		keys = new long[(int) entries];
+		data = new long[(int) entries];
+		mask = (int) entries - 1;
+	}
+
+	/**
+	 * Returns the number of entries in the table
+	 */
+	public int getCapacity()
+	{
+		return keys.length;
+	}
+
+	/**
+	 * Starts a new search (entries from older searches are replaced first)
+	 */
+	public void newSearch()
+	{
+		age = (age + 1) & 0x3F;
+	}
+
+	/**
+	 * Removes all entries from the table
+	 */
+	public void clear()
+	{
+		for(int i = 0; i < keys.length; i++)
+		{
+			keys[i] = 0;
+			data[i] = 0;
+		}
+	}
+
+	/**
+	 * Looks up a position
+	 *
+	 * @param key position hash
+	 * @return the packed entry data or NO_ENTRY
+	 */
+	public long probe(long key)
+	{
+		int index = (int) key & mask;
+		long entry = data[index];
+		return ((keys[index] ^ entry) == key) ? entry : NO_ENTRY;
+	}
+
+	/**
+	 * Stores a search result
+	 *
+	 * @param key position hash
+	 * @param move best move (packed using GameState.encodeMove) or -1
+	 * @param value value of the position (-MAX_VALUE to MAX_VALUE)
+	 * @param depth depth searched (0 to 255)
+	 * @param bound bound type (one of the BOUND constants)
+	 */
+	public void store(long key, int move, int value, int depth, int bound)
+	{
+		int index = (int) key & mask;
+		long existing = data[index];
+
+		if((keys[index] ^ existing) != key && existing != NO_ENTRY &&
+				getAge(existing) == age && getDepth(existing) > depth)
+		{
+			//Keep deeper entry from this search
+			return;
+		}
+
+		long entry = (move & ((1L << MOVE_BITS) - 1)) |
+				((value & ((1L << VALUE_BITS) - 1)) << MOVE_BITS) |
+				((long) (depth & 0xFF) << 48) |
+				((long) bound << 56) |
+				((long) age << 58);
+
+		keys[index] = key ^ entry;
+		data[index] = entry;
+	}
+
+	/**
+	 * Returns the move stored in an entry
+	 *
+	 * @param entry entry data returned by probe
+	 */
+	public static int getMove(long entry)
+	{
+		//Sign extend so -1 is returned unchanged
+		return (int) (entry << (64 - MOVE_BITS) >> (64 - MOVE_BITS));
+	}
+
+	/**
+	 * Returns the value stored in an entry
+	 *
+	 * @param entry entry data returned by probe
+	 */
+	public static int getValue(long entry)
+	{
+		return (int) (entry << (64 - MOVE_BITS - VALUE_BITS) >> (64 - VALUE_BITS));
+	}
+
+	/**
+	 * Returns the depth stored in an entry
+	 *
+	 * @param entry entry data returned by probe
+	 */
+	public static int getDepth(long entry)
+	{
+		return (int) (entry >>> 48) & 0xFF;
+	}
+
+	/**
+	 * Returns the bound type stored in an entry
+	 *
+	 * @param entry entry data returned by probe
+	 */
+	public static int getBound(long entry)
+	{
+		return (int) (entry >>> 56) & 3;
+	}
+
+	/**
+	 * Returns the search age stored in an entry
+	 */
+	private static int getAge(long entry)
+	{
+		return (int) (entry >>> 58) & 0x3F;
+	}
+}